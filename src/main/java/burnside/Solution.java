@@ -1,98 +1,326 @@
 package burnside;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 public class Solution {
 
-    final static Map<ConjClass, BigInteger> cache = new HashMap<>();
+    // Memo tables shared by all callers, bounded so that long running JVM doesn't accumulate them forever
+    final static Memo<ConjClass, BigInteger> conjugates = new Memo<>(1 << 16, 64L << 20, Solution::sizeOf);
+    final static Memo<Integer, BigInteger> factorials = new Memo<>(1 << 10, 16L << 20, Solution::sizeOf);
+    final static Memo<Long, CycleIndex> cycleIndices = new Memo<>(1 << 10, 64L << 20, CycleIndex::sizeOf);
+    // Optional persistent storage of cycle indices and conjugate counts, survives JVM restarts
+    static volatile Store store;
 
     // I'm not really on that level of math, and unfortunately don't have enough free time to dig into this on my own,
     // so all credits go to Chris Locke and his article: https://project-eutopia.github.io/Google_foobar_challenge/
     // Also used test cases from here: https://math.stackexchange.com/a/2057828/498993
     public static String solution(int w, int h, int s) {
-        BigInteger S = BigInteger.valueOf(s);
-        BigInteger sum = BigInteger.ZERO;
         // We are looking for number of equivalency classes of X under action by G:
         // N(w, h, s) = (∑g∈G |X^g|) / |G|
         // |G| = w! * h! - number of all row/column permutations
         // ∑g∈G |X^g| - for any two conjugacy classes of row/column permutations: cc1/cc2
         //      we multiply number of permutations in that classes: numberOfConjugates(cc1) * numberOfConjugates(cc2)
         //      by number of fixed points of that permutation: s ^ numberOfOrbits(cc1, cc2)
-        for (ConjClass cc1 : conjClassesOfSize(w)) {
-            for (ConjClass cc2 : conjClassesOfSize(h)) {
-                sum = sum.add(S.pow(numberOfOrbits(cc1, cc2))
-                    .multiply(cache.computeIfAbsent(cc1, Solution::numberOfConjugates))
-                    .multiply(cache.computeIfAbsent(cc2, Solution::numberOfConjugates)));
-            }
+        if (store != null) {
+            // Cycle index is stored for future calls, and costs about the same as direct computation
+            return cycleIndex(w, h).evaluate(s).toString();
         }
+        // Row classes are enumerated lazily one by one, column classes are listed once per call
+        List<ConjClass> ccs2 = conjClassesOfSize(h);
+        BigInteger[] conjs2 = numbersOfConjugates(h, ccs2);
+        BigInteger[] pows = powers(s, w * h);
+        BigInteger sum = BigInteger.ZERO;
+        Partitions cc1 = new Partitions(w);
+        do {
+            BigInteger conj1 = numberOfConjugates(cc1.lens, cc1.mults, cc1.distinct);
+            sum = sum.add(sumOfFixedPoints(pows, cc1.lens, cc1.mults, cc1.distinct, conj1, ccs2, conjs2));
+        } while (cc1.next());
         return sum.divide(factorial(w)).divide(factorial(h)).toString();
     }
 
+    // Same as solution(w, h, s), but pairs of conjugacy classes are split between threads of given pool.
+    // Level of parallelism is controlled by the pool, e.g. new ForkJoinPool(32).
+    public static String solution(int w, int h, int s, ForkJoinPool pool) {
+        List<ConjClass> ccs1 = conjClassesOfSize(w);
+        List<ConjClass> ccs2 = conjClassesOfSize(h);
+        BigInteger[] conjs2 = numbersOfConjugates(h, ccs2);
+        BigInteger[] pows = powers(s, w * h);
+        BigInteger sum = pool.invoke(new SumOfFixedPoints(pows, ccs1, 0, ccs1.size(), ccs2, conjs2));
+        return sum.divide(factorial(w)).divide(factorial(h)).toString();
+    }
+
+    // ∑g∈G |X^g| for single row conjugacy class lens/mults[0..distinct) and all of ccs2
+    // pows[k] = s ^ k
+    private static BigInteger sumOfFixedPoints(BigInteger[] pows, int[] lens1, int[] mults1, int distinct1,
+                                               BigInteger conj1, List<ConjClass> ccs2, BigInteger[] conjs2) {
+        BigInteger sum = BigInteger.ZERO;
+        for (int j = 0; j < conjs2.length; j++) {
+            sum = sum.add(pows[numberOfOrbits(lens1, mults1, distinct1, ccs2.get(j))].multiply(conjs2[j]));
+        }
+        return sum.multiply(conj1);
+    }
+
+    // Splits ccs1 in halves until each part has reasonable number of pairs to process.
+    // Partial sums are added up while joining the halves, so big numbers are reduced as a tree.
+    static class SumOfFixedPoints extends RecursiveTask<BigInteger> {
+        private static final long serialVersionUID = 1L;
+
+        // Max number of conjugacy class pairs processed by single task
+        static final int PAIRS_PER_TASK = 1 << 10;
+
+        private final BigInteger[] pows;
+        private final List<ConjClass> ccs1;
+        private final int from;
+        private final int to;
+        private final List<ConjClass> ccs2;
+        private final BigInteger[] conjs2;
+
+        SumOfFixedPoints(BigInteger[] pows, List<ConjClass> ccs1, int from, int to,
+                         List<ConjClass> ccs2, BigInteger[] conjs2) {
+            this.pows = pows;
+            this.ccs1 = ccs1;
+            this.from = from;
+            this.to = to;
+            this.ccs2 = ccs2;
+            this.conjs2 = conjs2;
+        }
+
+        @Override
+        protected BigInteger compute() {
+            if (to - from <= 1 || (long) (to - from) * ccs2.size() <= PAIRS_PER_TASK) {
+                BigInteger sum = BigInteger.ZERO;
+                for (ConjClass cc1 : ccs1.subList(from, to)) {
+                    BigInteger conj1 = conjugates.get(cc1, Solution::numberOfConjugates);
+                    sum = sum.add(sumOfFixedPoints(pows, cc1.lens, cc1.mults, cc1.lens.length, conj1, ccs2, conjs2));
+                }
+                return sum;
+            }
+            int mid = (from + to) >>> 1;
+            SumOfFixedPoints left = new SumOfFixedPoints(pows, ccs1, from, mid, ccs2, conjs2);
+            left.fork();
+            BigInteger right = new SumOfFixedPoints(pows, ccs1, mid, to, ccs2, conjs2).compute();
+            return left.join().add(right);
+        }
+    }
+
+    // Same as solution(w, h, s), but for many values of s at once.
+    // Only s ^ numberOfOrbits(cc1, cc2) depends on s, so we group all pairs of conjugacy classes by number of orbits
+    // once per grid size, and then evaluate resulting polynomial for each s.
+    public static String[] solutions(int w, int h, int[] s) {
+        CycleIndex ci = cycleIndex(w, h);
+        String[] res = new String[s.length];
+        for (int i = 0; i < s.length; i++) {
+            res[i] = ci.evaluate(s[i]).toString();
+        }
+        return res;
+    }
+
+    static CycleIndex cycleIndex(int w, int h) {
+        return cycleIndices.get(((long) w << 32) | h, k -> {
+            Store st = store;
+            BigInteger[] coefs = st != null ? st.get(Store.CYCLE_INDEX, w, h) : null;
+            if (coefs != null) {
+                return new CycleIndex(coefs, factorial(w).multiply(factorial(h)));
+            }
+            coefs = new BigInteger[w * h + 1];
+            Arrays.fill(coefs, BigInteger.ZERO);
+            List<ConjClass> ccs2 = conjClassesOfSize(h);
+            BigInteger[] conjs2 = numbersOfConjugates(h, ccs2);
+            Partitions cc1 = new Partitions(w);
+            do {
+                BigInteger conj1 = numberOfConjugates(cc1.lens, cc1.mults, cc1.distinct);
+                for (int j = 0; j < conjs2.length; j++) {
+                    int orbits = numberOfOrbits(cc1.lens, cc1.mults, cc1.distinct, ccs2.get(j));
+                    coefs[orbits] = coefs[orbits].add(conj1.multiply(conjs2[j]));
+                }
+            } while (cc1.next());
+            if (st != null) {
+                st.put(Store.CYCLE_INDEX, w, h, coefs);
+            }
+            return new CycleIndex(coefs, factorial(w).multiply(factorial(h)));
+        });
+    }
+
+    // Same as solution(w, h, s), but computed modulo prime p, using only primitive arithmetic.
+    // p must be below 2^31 (so that product of two residues fits into long) and greater than w and h.
+    public static long solutionModulo(int w, int h, int s, long p) {
+        return solutionsModulo(w, h, s, new long[] {p})[0];
+    }
+
+    // Same as solution(w, h, s), but computed modulo several primes,
+    // and then restored using Chinese remainder theorem: https://en.wikipedia.org/wiki/Chinese_remainder_theorem
+    // Number of orbits can't exceed s ^ (w * h), so we take enough of 31-bit primes to cover that.
+    public static String solutionCrt(int w, int h, int s) {
+        int bits = (int) Math.ceil(w * h * Math.log(Math.max(s, 2)) / Math.log(2)) + 1;
+        long[] primes = ModPrimes.get(bits / 30 + 1);
+        long[] residues = solutionsModulo(w, h, s, primes);
+        return ModPrimes.restore(residues, primes).toString();
+    }
+
+    // N(w, h, s) modulo each of primes
+    private static long[] solutionsModulo(int w, int h, int s, long[] primes) {
+        for (long p : primes) {
+            // Inverses are found by Fermat's little theorem, so p must be prime
+            if (p <= Math.max(w, h) || p >= 1L << 31 || !BigInteger.valueOf(p).isProbablePrime(64)) {
+                throw new IllegalArgumentException("Unsupported modulo " + p);
+            }
+        }
+        int n = primes.length;
+        // Factorials and powers of s, for each of primes
+        long[][] facs = new long[n][Math.max(w, h) + 1];
+        long[][] pows = new long[n][w * h + 1];
+        for (int i = 0; i < n; i++) {
+            long p = primes[i];
+            facs[i][0] = 1;
+            for (int k = 1; k < facs[i].length; k++) {
+                facs[i][k] = facs[i][k - 1] * k % p;
+            }
+            pows[i][0] = 1;
+            for (int k = 1; k < pows[i].length; k++) {
+                pows[i][k] = pows[i][k - 1] * (s % p) % p;
+            }
+        }
+        List<ConjClass> ccs2 = conjClassesOfSize(h);
+        long[][] conjs2 = new long[ccs2.size()][];
+        for (int j = 0; j < conjs2.length; j++) {
+            ConjClass cc2 = ccs2.get(j);
+            conjs2[j] = numberOfConjugatesModulo(cc2.lens, cc2.mults, cc2.lens.length, primes, facs);
+        }
+        long[] sums = new long[n];
+        Partitions cc1 = new Partitions(w);
+        do {
+            long[] conj1 = numberOfConjugatesModulo(cc1.lens, cc1.mults, cc1.distinct, primes, facs);
+            for (int j = 0; j < conjs2.length; j++) {
+                int orbits = numberOfOrbits(cc1.lens, cc1.mults, cc1.distinct, ccs2.get(j));
+                for (int i = 0; i < n; i++) {
+                    long p = primes[i];
+                    sums[i] = (sums[i] + pows[i][orbits] * conj1[i] % p * conjs2[j][i]) % p;
+                }
+            }
+        } while (cc1.next());
+        for (int i = 0; i < n; i++) {
+            long p = primes[i];
+            long group = facs[i][w] * facs[i][h] % p;
+            sums[i] = sums[i] * ModPrimes.inverse(group, p) % p;
+        }
+        return sums;
+    }
+
+    // Same formula as in numberOfConjugates, division is replaced by multiplication by modular inverse
+    private static long[] numberOfConjugatesModulo(int[] lens, int[] mults, int distinct, long[] primes, long[][] facs) {
+        long[] res = new long[primes.length];
+        for (int i = 0; i < primes.length; i++) {
+            long p = primes[i];
+            long den = 1;
+            int size = 0;
+            for (int k = 0; k < distinct; k++) {
+                den = den * facs[i][mults[k]] % p * ModPrimes.power(lens[k], mults[k], p) % p;
+                size += lens[k] * mults[k];
+            }
+            res[i] = facs[i][size] * ModPrimes.inverse(den, p) % p;
+        }
+        return res;
+    }
+
     private static List<ConjClass> conjClassesOfSize(int size) {
         List<ConjClass> res = new ArrayList<>();
-        conjClassOfSizeAndMaxCycle(res, new int[size], 0, size, size);
+        Partitions cc = new Partitions(size);
+        do {
+            res.add(new ConjClass(Arrays.copyOf(cc.lens, cc.distinct), Arrays.copyOf(cc.mults, cc.distinct)));
+        } while (cc.next());
         return res;
     }
 
-    private static void conjClassOfSizeAndMaxCycle(List<ConjClass> res, int[] rows, int curr, int size, int width) {
-        if (size == 0) {
-            res.add(new ConjClass(Arrays.copyOfRange(rows, 0, curr)));
-            return;
+    // Numbers of conjugates for all conjugacy classes of given size, as listed by conjClassesOfSize(size)
+    private static BigInteger[] numbersOfConjugates(int size, List<ConjClass> ccs) {
+        Store st = store;
+        BigInteger[] res = st != null ? st.get(Store.CONJUGATES, size, 0) : null;
+        if (res != null) {
+            return res;
+        }
+        res = new BigInteger[ccs.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = conjugates.get(ccs.get(i), Solution::numberOfConjugates);
         }
-        for (int row = Math.min(width, size); row > 0; row--) {
-            rows[curr] = row;
-            conjClassOfSizeAndMaxCycle(res, rows, curr + 1, size - row, row);
+        if (st != null) {
+            st.put(Store.CONJUGATES, size, 0, res);
         }
+        return res;
     }
 
     // Find number of permutations in some conjugacy class
     // Use formula for number of conjugates from here: https://en.wikipedia.org/wiki/Conjugacy_class#Properties
     // n! / ((k1! * m1^k1) * (k2! * m2^k2) * ... * (ks! * ms^ks))
-    // For efficiency compute based on conjugacy class of smaller size and cache result.
     private static BigInteger numberOfConjugates(ConjClass cc) {
-        if (cc.cycleLen[0] == 1) {
-            // Identity (e.g (1) (2) (3) (4))
-            return BigInteger.ONE;
-        }
-        if (cc.cycleLen.length == 1) {
-            // Cyclic permutations of all elements = (n - 1)!
-            return factorial(cc.cycleLen[0] - 1);
-        }
-        // Recursively calculate number of permutations without first (largest) cycle
-        BigInteger res = cache.computeIfAbsent(
-                new ConjClass(Arrays.copyOfRange(cc.cycleLen, 1, cc.cycleLen.length)),
-                Solution::numberOfConjugates);
-        // Adjust the result to take first cycle into account
-        int sum = Arrays.stream(cc.cycleLen).sum();
-        for (int i = sum - cc.cycleLen[0] + 1; i <= sum; i++) {
-            res = res.multiply(BigInteger.valueOf(i));
-        }
-        if (cc.cycleLen[1] == cc.cycleLen[0]) {
-            int i = 2;
-            while (i < cc.cycleLen.length && cc.cycleLen[i] == cc.cycleLen[0]) {
-                i++;
-            }
-            res = res.divide(BigInteger.valueOf(i));
+        return numberOfConjugates(cc.lens, cc.mults, cc.lens.length);
+    }
+
+    private static BigInteger numberOfConjugates(int[] lens, int[] mults, int distinct) {
+        BigInteger den = BigInteger.ONE;
+        int size = 0;
+        for (int i = 0; i < distinct; i++) {
+            den = den.multiply(factorial(mults[i])).multiply(BigInteger.valueOf(lens[i]).pow(mults[i]));
+            size += lens[i] * mults[i];
         }
-        return res.divide(BigInteger.valueOf(cc.cycleLen[0]));
+        return factorial(size).divide(den);
     }
 
-    private static int numberOfOrbits(ConjClass cc1, ConjClass cc2) {
+    // Each pair of cycles with lengths m1 and m2 produces gcd(m1, m2) orbits,
+    // so k1 cycles of length m1 and k2 cycles of length m2 produce k1 * k2 * gcd(m1, m2) orbits.
+    private static int numberOfOrbits(int[] lens1, int[] mults1, int distinct1, ConjClass cc2) {
         int orbits = 0;
-        for (int row1 : cc1.cycleLen) {
-            for (int row2 : cc2.cycleLen) {
-                orbits += gcd(row1, row2);
+        for (int i = 0; i < distinct1; i++) {
+            int orbits1 = 0;
+            for (int j = 0; j < cc2.lens.length; j++) {
+                orbits1 += cc2.mults[j] * gcd(lens1[i], cc2.lens[j]);
             }
+            orbits += mults1[i] * orbits1;
         }
         return orbits;
     }
 
+    // Precomputed gcd for small arguments, which covers all practical grid sizes
+    private static final int[][] GCD = new int[128][128];
+    static {
+        for (int a = 0; a < GCD.length; a++) {
+            for (int b = 0; b < GCD.length; b++) {
+                GCD[a][b] = euclid(a, b);
+            }
+        }
+    }
+
     static int gcd(int a, int b) {
+        if (a < GCD.length && b < GCD.length) {
+            return GCD[a][b];
+        }
+        return euclid(a, b);
+    }
+
+    private static int euclid(int a, int b) {
         while (a != 0) {
             int aTmp = a;
             a = b % a;
@@ -102,24 +330,361 @@ public class Solution {
     }
 
     private static BigInteger factorial(int n) {
-        BigInteger fac = BigInteger.ONE;
-        for (int i = 2; i <= n ; i++) {
-            fac = fac.multiply(BigInteger.valueOf(i));
+        return Factorials.get(n);
+    }
+
+    // [s ^ 0, s ^ 1, ..., s ^ maxExp], each power is previous one multiplied by s
+    private static BigInteger[] powers(int s, int maxExp) {
+        BigInteger S = BigInteger.valueOf(s);
+        BigInteger[] pows = new BigInteger[maxExp + 1];
+        pows[0] = BigInteger.ONE;
+        for (int k = 1; k <= maxExp; k++) {
+            pows[k] = pows[k - 1].multiply(S);
+        }
+        return pows;
+    }
+
+    // Enable persistent storage in given file, or disable it if file is null
+    public static void useStore(Path file) throws IOException {
+        Store prev = store;
+        store = file != null ? new Store(file) : null;
+        if (prev != null) {
+            prev.close();
+        }
+    }
+
+    // Rough estimate of BigInteger footprint: object header with fields and magnitude array
+    private static long sizeOf(BigInteger value) {
+        return 56 + (value.bitLength() >> 3);
+    }
+
+    // Table of factorials shared by all callers, grows on demand.
+    // Every next factorial in the table is previous one multiplied by n, which is the cheapest way to get all of them.
+    // Factorials beyond the table limit are computed from the last table entry by binary splitting:
+    // product of [lo..hi] is split in halves, so multiplied numbers are of similar size.
+    static class Factorials {
+        static final int TABLE_LIMIT = 1 << 12;
+        private static volatile BigInteger[] table = {BigInteger.ONE};
+
+        static BigInteger get(int n) {
+            BigInteger[] facs = table;
+            if (n < facs.length) {
+                return facs[n];
+            }
+            if (n >= TABLE_LIMIT) {
+                return factorials.get(n, k -> get(TABLE_LIMIT - 1).multiply(product(TABLE_LIMIT, n)));
+            }
+            synchronized (Factorials.class) {
+                facs = table;
+                if (n >= facs.length) {
+                    int last = facs.length - 1;
+                    facs = Arrays.copyOf(facs, Math.min(TABLE_LIMIT, Math.max(n + 1, facs.length * 2)));
+                    for (int k = last + 1; k < facs.length; k++) {
+                        facs[k] = facs[k - 1].multiply(BigInteger.valueOf(k));
+                    }
+                    table = facs;
+                }
+            }
+            return facs[n];
+        }
+
+        // lo * (lo + 1) * ... * hi
+        static BigInteger product(int lo, int hi) {
+            if (hi - lo < 8) {
+                BigInteger res = BigInteger.valueOf(lo);
+                for (int k = lo + 1; k <= hi; k++) {
+                    res = res.multiply(BigInteger.valueOf(k));
+                }
+                return res;
+            }
+            int mid = (lo + hi) >>> 1;
+            return product(lo, mid).multiply(product(mid + 1, hi));
+        }
+    }
+
+    // Largest primes below 2^31, and arithmetic modulo such primes
+    static class ModPrimes {
+        private static volatile long[] primes = new long[0];
+
+        // First count primes, in descending order
+        static long[] get(int count) {
+            long[] res = primes;
+            if (res.length < count) {
+                synchronized (ModPrimes.class) {
+                    res = primes;
+                    if (res.length < count) {
+                        res = Arrays.copyOf(res, Math.max(count, res.length * 2));
+                        long candidate = primes.length == 0 ? (1L << 31) - 1 : primes[primes.length - 1] - 2;
+                        for (int i = primes.length; i < res.length; candidate -= 2) {
+                            if (BigInteger.valueOf(candidate).isProbablePrime(64)) {
+                                res[i++] = candidate;
+                            }
+                        }
+                        primes = res;
+                    }
+                }
+            }
+            return Arrays.copyOf(res, count);
+        }
+
+        static long power(long base, long exp, long p) {
+            long res = 1;
+            base %= p;
+            while (exp > 0) {
+                if ((exp & 1) != 0) {
+                    res = res * base % p;
+                }
+                base = base * base % p;
+                exp >>= 1;
+            }
+            return res;
+        }
+
+        // Fermat's little theorem: a ^ (p - 2) * a = 1 (mod p)
+        static long inverse(long a, long p) {
+            return power(a, p - 2, p);
+        }
+
+        // Garner's algorithm: https://en.wikipedia.org/wiki/Mixed_radix
+        // x = d[0] + d[1] * p[0] + d[2] * p[0] * p[1] + ..., where each digit d[i] < p[i]
+        static BigInteger restore(long[] residues, long[] primes) {
+            long[] digits = new long[primes.length];
+            for (int i = 0; i < primes.length; i++) {
+                long p = primes[i];
+                // Value of x restored from digits so far, and product of previous primes, both modulo p
+                long x = 0;
+                long mul = 1;
+                for (int j = 0; j < i; j++) {
+                    x = (x + digits[j] % p * mul) % p;
+                    mul = mul * (primes[j] % p) % p;
+                }
+                digits[i] = (residues[i] - x + p) % p * inverse(mul, p) % p;
+            }
+            BigInteger res = BigInteger.ZERO;
+            for (int i = primes.length - 1; i >= 0; i--) {
+                res = res.multiply(BigInteger.valueOf(primes[i])).add(BigInteger.valueOf(digits[i]));
+            }
+            return res;
+        }
+    }
+
+    // Append-only file with arrays of big numbers, each array has a key: (kind, a, b).
+    // File starts with MAGIC and VERSION. A store file of another version is started from scratch, as its records
+    // may mean something else, so VERSION must be increased when the meaning of records changes
+    // (e.g. the order of conjClassesOfSize). Other non-empty files are not touched.
+    // Record format: kind (byte), a (int), b (int), array length (int),
+    // then each number as length of its two's-complement representation (int) followed by the bytes.
+    // On startup the file is memory-mapped and only record headers are scanned,
+    // records are decoded on first request. New records are appended to the file and kept in memory.
+    // Incomplete record at the end of the file (e.g. after a crash) is truncated.
+    static class Store implements Closeable {
+        // Cycle index coefficients for a = w, b = h
+        static final byte CYCLE_INDEX = 1;
+        // Numbers of conjugates for a = size, b = 0, in the order of conjClassesOfSize
+        static final byte CONJUGATES = 2;
+        // "BNS1"
+        static final int MAGIC = 0x424e5331;
+        static final int VERSION = 1;
+        static final int HEADER_SIZE = 8;
+
+        private final FileChannel channel;
+        private final MappedByteBuffer mapped;
+        // Record offsets in mapped part of the file
+        private final Map<Long, Integer> offsets = new HashMap<>();
+        private final ConcurrentHashMap<Long, BigInteger[]> loaded = new ConcurrentHashMap<>();
+
+        Store(Path file) throws IOException {
+            this.channel = FileChannel.open(file, READ, WRITE, CREATE);
+            int version;
+            try {
+                version = readVersion();
+            } catch (IOException e) {
+                channel.close();
+                throw new IOException("Not a store file: " + file, e);
+            }
+            if (version != VERSION) {
+                // New file, or records of another version
+                channel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            }
+            this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int offset = HEADER_SIZE;
+            while (true) {
+                int end = recordEnd(offset);
+                if (end < 0) {
+                    break;
+                }
+                offsets.put(key(mapped.get(offset), mapped.getInt(offset + 1), mapped.getInt(offset + 5)), offset);
+                offset = end;
+            }
+            channel.truncate(offset);
+            channel.position(offset);
+        }
+
+        // Version of the store file, or -1 if it is empty. Throws if it is not a store file,
+        // so that a file passed by mistake is not destroyed.
+        private int readVersion() throws IOException {
+            if (channel.size() == 0) {
+                return -1;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Incomplete header");
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Unknown header");
+            }
+            return header.getInt(4);
+        }
+
+        // Offset of the end of the record starting at given offset, or -1 if the record is incomplete or broken
+        private int recordEnd(int offset) {
+            int limit = mapped.limit();
+            if (offset + 13 > limit) {
+                return -1;
+            }
+            int count = mapped.getInt(offset + 9);
+            if (count < 0) {
+                return -1;
+            }
+            offset += 13;
+            for (int i = 0; i < count; i++) {
+                if (offset + 4 > limit) {
+                    return -1;
+                }
+                int len = mapped.getInt(offset);
+                if (len <= 0 || len > limit - offset - 4) {
+                    return -1;
+                }
+                offset += 4 + len;
+            }
+            return offset;
+        }
+
+        private static long key(byte kind, int a, int b) {
+            return ((long) kind << 62) | ((long) a << 31) | b;
+        }
+
+        BigInteger[] get(byte kind, int a, int b) {
+            long key = key(kind, a, b);
+            BigInteger[] res = loaded.get(key);
+            if (res != null) {
+                return res;
+            }
+            Integer offset = offsets.get(key);
+            if (offset == null) {
+                return null;
+            }
+            ByteBuffer buf = mapped.duplicate();
+            buf.position(offset + 9);
+            res = new BigInteger[buf.getInt()];
+            for (int i = 0; i < res.length; i++) {
+                byte[] bytes = new byte[buf.getInt()];
+                buf.get(bytes);
+                res[i] = new BigInteger(bytes);
+            }
+            loaded.putIfAbsent(key, res);
+            return res;
+        }
+
+        synchronized void put(byte kind, int a, int b, BigInteger[] values) {
+            long key = key(kind, a, b);
+            if (loaded.containsKey(key) || offsets.containsKey(key)) {
+                return;
+            }
+            byte[][] encoded = new byte[values.length][];
+            int size = 13;
+            for (int i = 0; i < values.length; i++) {
+                encoded[i] = values[i].toByteArray();
+                size += 4 + encoded[i].length;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            buf.put(kind).putInt(a).putInt(b).putInt(values.length);
+            for (byte[] bytes : encoded) {
+                buf.putInt(bytes.length).put(bytes);
+            }
+            buf.flip();
+            try {
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            loaded.put(key, values.clone());
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Enumerates all conjugacy classes of given size one by one, from the longest cycles to the shortest,
+    // reusing the same buffers: current class is lens[0..distinct) and mults[0..distinct), encoded as in ConjClass.
+    // Next class is produced from current one by taking all cycles of length 1 and one cycle of smallest length m > 1,
+    // and splitting them into as many cycles of length m - 1 as possible, plus one shorter cycle for the remainder.
+    static class Partitions {
+        final int[] lens;
+        final int[] mults;
+        int distinct;
+
+        Partitions(int size) {
+            this.lens = new int[size + 1];
+            this.mults = new int[size + 1];
+            if (size > 0) {
+                lens[0] = size;
+                mults[0] = 1;
+                distinct = 1;
+            }
+        }
+
+        // Move to the next class, returns false if current class was the last one (identity)
+        boolean next() {
+            int rest = 0;
+            if (distinct > 0 && lens[distinct - 1] == 1) {
+                rest = mults[--distinct];
+            }
+            if (distinct == 0) {
+                return false;
+            }
+            int len = lens[distinct - 1];
+            rest += len;
+            if (--mults[distinct - 1] == 0) {
+                distinct--;
+            }
+            lens[distinct] = len - 1;
+            mults[distinct] = rest / (len - 1);
+            distinct++;
+            if (rest % (len - 1) != 0) {
+                lens[distinct] = rest % (len - 1);
+                mults[distinct] = 1;
+                distinct++;
+            }
+            return true;
         }
-        return fac;
     }
 
     // Some conjugacy class of permutations: https://en.wikipedia.org/wiki/Conjugacy_class
-    // Encoded as lengths of each permutation cycle in Young tableau: https://en.wikipedia.org/wiki/Young_tableau
-    // E.g cells = [7, 2, 2, 1] encodes following tableau:
+    // Encoded as distinct lengths of permutation cycles in Young tableau: https://en.wikipedia.org/wiki/Young_tableau
+    // and number of cycles of each length.
+    // E.g lens = [7, 2, 1], mults = [1, 2, 1] encodes following tableau:
     // x x x x x x x
     // x x
     // x x
     // x
     private static class ConjClass {
-        final int[] cycleLen;
-        private ConjClass(int[] cycleLen) {
-            this.cycleLen = cycleLen;
+        final int[] lens;
+        final int[] mults;
+        private ConjClass(int[] lens, int[] mults) {
+            this.lens = lens;
+            this.mults = mults;
         }
 
         @Override
@@ -127,17 +692,135 @@ public class Solution {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             ConjClass conjClass = (ConjClass) o;
-            return Arrays.equals(cycleLen, conjClass.cycleLen);
+            return Arrays.equals(lens, conjClass.lens) && Arrays.equals(mults, conjClass.mults);
         }
 
         @Override
         public int hashCode() {
-            return Arrays.hashCode(cycleLen);
+            return 31 * Arrays.hashCode(lens) + Arrays.hashCode(mults);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("ConjClass[");
+            for (int i = 0; i < lens.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(lens[i]).append('^').append(mults[i]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    // Cycle index of row/column permutation group acting on w * h grid: https://en.wikipedia.org/wiki/Cycle_index
+    // Z(s) = (coefs[0] + coefs[1] * s + ... + coefs[w * h] * s ^ (w * h)) / denominator
+    // where coefs[k] is number of permutations with exactly k orbits, and denominator = w! * h!
+    static class CycleIndex {
+        final BigInteger[] coefs;
+        final BigInteger denominator;
+
+        CycleIndex(BigInteger[] coefs, BigInteger denominator) {
+            this.coefs = coefs;
+            this.denominator = denominator;
+        }
+
+        // Horner's method: (...(coefs[n] * s + coefs[n - 1]) * s + ... ) * s + coefs[0]
+        BigInteger evaluate(int s) {
+            BigInteger S = BigInteger.valueOf(s);
+            BigInteger sum = BigInteger.ZERO;
+            for (int k = coefs.length - 1; k >= 0; k--) {
+                sum = sum.multiply(S).add(coefs[k]);
+            }
+            return sum.divide(denominator);
+        }
+
+        long sizeOf() {
+            long size = 32 + Solution.sizeOf(denominator);
+            for (BigInteger coef : coefs) {
+                size += 8 + Solution.sizeOf(coef);
+            }
+            return size;
+        }
+    }
+
+    // Concurrent memo table bounded by number of entries and by approximate size of values in bytes.
+    // Unlike ConcurrentHashMap.computeIfAbsent, value is computed outside of the map, so a long computation
+    // doesn't block other keys, and it may query other tables (cycle index computation uses factorials).
+    // Concurrent misses on the same key may compute value twice, that's fine for pure functions.
+    // When any of the limits is exceeded, oldest entries are evicted first.
+    static class Memo<K, V> {
+        private final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<>();
+        // Keys in insertion order, used for eviction
+        private final ConcurrentLinkedQueue<K> order = new ConcurrentLinkedQueue<>();
+        private final int maxEntries;
+        private final long maxBytes;
+        private final ToLongFunction<? super V> sizeOf;
+        private final AtomicLong bytes = new AtomicLong();
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+
+        Memo(int maxEntries, long maxBytes, ToLongFunction<? super V> sizeOf) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.sizeOf = sizeOf;
+        }
+
+        V get(K key, Function<? super K, ? extends V> compute) {
+            V value = map.get(key);
+            if (value != null) {
+                hits.increment();
+                return value;
+            }
+            misses.increment();
+            value = compute.apply(key);
+            V existing = map.putIfAbsent(key, value);
+            if (existing != null) {
+                return existing;
+            }
+            order.add(key);
+            bytes.addAndGet(sizeOf.applyAsLong(value));
+            evict();
+            return value;
+        }
+
+        private void evict() {
+            while (map.size() > maxEntries || bytes.get() > maxBytes) {
+                K oldest = order.poll();
+                if (oldest == null) {
+                    return;
+                }
+                V removed = map.remove(oldest);
+                if (removed != null) {
+                    bytes.addAndGet(-sizeOf.applyAsLong(removed));
+                    evictions.increment();
+                }
+            }
+        }
+
+        int size() {
+            return map.size();
+        }
+
+        long bytes() {
+            return bytes.get();
+        }
+
+        void clear() {
+            K key;
+            while ((key = order.poll()) != null) {
+                V removed = map.remove(key);
+                if (removed != null) {
+                    bytes.addAndGet(-sizeOf.applyAsLong(removed));
+                }
+            }
         }
 
         @Override
         public String toString() {
-            return "ConjClass" + Arrays.toString(cycleLen);
+            return "Memo{size=" + size() + ", bytes=" + bytes() + ", hits=" + hits + ", misses=" + misses
+                    + ", evictions=" + evictions + "}";
         }
     }
 }
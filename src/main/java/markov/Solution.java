@@ -1,9 +1,30 @@
 package markov;
 
+import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 public class Solution {
+    // Method of solving linear systems
+    public enum Elimination {
+        // Rational arithmetic, rows are simplified after every step
+        GAUSS_JORDAN,
+        // Integer arithmetic with exact divisions, no gcd computations
+        BAREISS,
+        // Double precision, then exact fractions are restored and checked. Falls back to BAREISS if that fails.
+        DOUBLE
+    }
+
+    // Tolerance for restoring fractions from results of double precision solution
+    private static final double TOLERANCE = 1e-9;
+
     public static int[] solution(int[][] m) {
+        return solution(m, Elimination.GAUSS_JORDAN);
+    }
+
+    public static int[] solution(int[][] m, Elimination elimination) {
         // The problem can be modeled by Absorbing Markov chain
         // Stable forms are absorbing states, other forms are transient states.
         // We would need to create two matrices:
@@ -13,35 +34,464 @@ public class Solution {
         //
         // See https://en.wikipedia.org/wiki/Absorbing_Markov_chain
 
-        AbsMarkovChain input = AbsMarkovChain.parse(m);
-
         // Corner case - all states are absorbing
-        if (input.trans.height() == 0) {
+        int start = firstTransientState(m);
+        if (start == -1) {
             int[] result = new int[m.length + 1];
             result[0] = 1;
             result[m.length] = 1;
             return result;
         }
 
+        // States which can't be reached from the start state don't affect the result, but make the system bigger
+        boolean[] reachable = reachableStates(m, start);
+        int[][] pruned = prune(m, reachable);
+        if (elimination == Elimination.DOUBLE) {
+            int[] result = solveDouble(pruned);
+            if (result != null) {
+                return expandResult(result, m, reachable);
+            }
+            elimination = Elimination.BAREISS;
+        }
+        AbsMarkovChain input = AbsMarkovChain.parse(pruned);
+
         // We would need to find absorbing probabilities for state 0.
-        // This is covered by B = (I - Q)^-1 * R
-        Mat absorbProbs = Mat.identity(input.trans.height())
+        // This is covered by first row of B = (I - Q)^-1 * R, so we don't need the whole inverse matrix,
+        // only its first row z: z * (I - Q) = e0, or after transposing: (I - Q)^T * z^T = e0^T
+        int size = input.trans.height();
+        Mat z = Mat.identity(size)
                 .minus(input.trans)
-                .invert()
-                .multiply(input.absorb);
+                .solveTransposed(Mat.unitColumn(size, 0), elimination)
+                .transpose();
+        Mat absorbProbs = z.multiply(input.absorb);
+
+        return expandResult(convertResult(absorbProbs), m, reachable);
+    }
+
+    // Absorbing probabilities h[i] to each absorbing state a from each transient state i are the solution of
+    // (I - Q) * h = R[a]. It is solved in double precision, then each h[i] is restored as a fraction with common
+    // denominator, and the equations are checked exactly. As the solution is unique, the check proves the result.
+    // Returns null if it fails, which happens when the denominators are too big to be restored from doubles.
+    static int[] solveDouble(int[][] m) {
+        int[] transients = new int[m.length];
+        int[] absorbing = new int[m.length];
+        int n = 0;
+        int absorbingCount = 0;
+        for (int i = 0; i < m.length; i++) {
+            if (AbsMarkovChain.isAbsorbing(i, m[i])) {
+                absorbing[absorbingCount++] = i;
+            } else {
+                transients[n++] = i;
+            }
+        }
+        // Rows of I - Q and R multiplied by sum of weights of the row
+        double[][] a = new double[n][n];
+        double[][] b = new double[n][absorbingCount];
+        for (int i = 0; i < n; i++) {
+            int[] row = m[transients[i]];
+            for (int j = 0; j < n; j++) {
+                a[i][j] = -row[transients[j]];
+            }
+            a[i][i] += Arrays.stream(row).asLongStream().sum();
+            for (int k = 0; k < absorbingCount; k++) {
+                b[i][k] = row[absorbing[k]];
+            }
+        }
+        if (!solveDouble(a, b)) {
+            return null;
+        }
+        // Probabilities from the start state (first transient state) as fractions
+        long[] startNums = new long[absorbingCount];
+        long[] startDens = new long[absorbingCount];
+        long den = 1;
+        for (int k = 0; k < absorbingCount; k++) {
+            long columnDen = commonDenominator(b, k);
+            if (columnDen == 0) {
+                return null;
+            }
+            long[] nums = new long[n];
+            for (int i = 0; i < n; i++) {
+                nums[i] = Math.round(b[i][k] * columnDen);
+            }
+            if (!checkProbabilities(m, transients, absorbing[k], nums, columnDen)) {
+                return null;
+            }
+            long gcd = absGcd(nums[0], columnDen);
+            startNums[k] = nums[0] / gcd;
+            startDens[k] = columnDen / gcd;
+            den = den / absGcd(den, startDens[k]) * startDens[k];
+            if (den > Integer.MAX_VALUE) {
+                return null;
+            }
+        }
+        int[] result = new int[absorbingCount + 1];
+        for (int k = 0; k < absorbingCount; k++) {
+            result[k] = (int) (startNums[k] * (den / startDens[k]));
+        }
+        result[absorbingCount] = (int) den;
+        return result;
+    }
+
+    // Gaussian elimination with partial pivoting, b is replaced by the solution of a * x = b.
+    // Returns false if the matrix is singular.
+    static boolean solveDouble(double[][] a, double[][] b) {
+        int n = a.length;
+        for (int k = 0; k < n; k++) {
+            int pivot = k;
+            for (int i = k + 1; i < n; i++) {
+                if (Math.abs(a[i][k]) > Math.abs(a[pivot][k])) {
+                    pivot = i;
+                }
+            }
+            if (a[pivot][k] == 0) {
+                return false;
+            }
+            double[] tmp = a[pivot];
+            a[pivot] = a[k];
+            a[k] = tmp;
+            tmp = b[pivot];
+            b[pivot] = b[k];
+            b[k] = tmp;
+            for (int i = k + 1; i < n; i++) {
+                double factor = a[i][k] / a[k][k];
+                if (factor == 0) {
+                    continue;
+                }
+                for (int j = k + 1; j < n; j++) {
+                    a[i][j] -= factor * a[k][j];
+                }
+                for (int j = 0; j < b[i].length; j++) {
+                    b[i][j] -= factor * b[k][j];
+                }
+            }
+        }
+        for (int k = n - 1; k >= 0; k--) {
+            for (int j = 0; j < b[k].length; j++) {
+                double value = b[k][j];
+                for (int i = k + 1; i < n; i++) {
+                    value -= a[k][i] * b[i][j];
+                }
+                b[k][j] = value / a[k][k];
+            }
+        }
+        return true;
+    }
+
+    // Smallest denominator which makes all values in the column close to integers, or 0 if it is too big
+    private static long commonDenominator(double[][] b, int col) {
+        long den = 1;
+        for (double[] row : b) {
+            double value = row[col] * den;
+            if (Math.abs(value - Math.rint(value)) < TOLERANCE * den) {
+                continue;
+            }
+            long[] fraction = approximate(row[col], Integer.MAX_VALUE);
+            if (fraction == null) {
+                return 0;
+            }
+            den = den / absGcd(den, fraction[1]) * fraction[1];
+            if (den > Integer.MAX_VALUE) {
+                return 0;
+            }
+        }
+        return den;
+    }
+
+    // Closest convergent of the continued fraction of x, with denominator up to maxDen:
+    // https://en.wikipedia.org/wiki/Continued_fraction#Best_rational_approximations
+    static long[] approximate(double x, long maxDen) {
+        // Convergents h[k] / k[k] = (q[k] * h[k - 1] + h[k - 2]) / (q[k] * k[k - 1] + k[k - 2])
+        long h0 = 0;
+        long h1 = 1;
+        long k0 = 1;
+        long k1 = 0;
+        double rest = x;
+        while (true) {
+            double q = Math.floor(rest);
+            if (Math.abs(q) > maxDen) {
+                return null;
+            }
+            long h2 = (long) q * h1 + h0;
+            long k2 = (long) q * k1 + k0;
+            if (k2 > maxDen) {
+                return null;
+            }
+            h0 = h1;
+            h1 = h2;
+            k0 = k1;
+            k1 = k2;
+            if (Math.abs(x - (double) h1 / k1) < TOLERANCE / k1) {
+                return new long[] {h1, k1};
+            }
+            rest = 1 / (rest - q);
+        }
+    }
+
+    // Check that h[i] = nums[i] / den is the solution of (I - Q) * h = R[a], where row i of the system is
+    // multiplied by its sum of weights: S[i] * h[i] - sum(w[i][j] * h[j]) = w[i][a]
+    private static boolean checkProbabilities(int[][] m, int[] transients, int a, long[] nums, long den) {
+        try {
+            for (int i = 0; i < nums.length; i++) {
+                int[] row = m[transients[i]];
+                long sum = Arrays.stream(row).asLongStream().sum();
+                long value = Math.multiplyExact(sum, nums[i]);
+                for (int j = 0; j < nums.length; j++) {
+                    value = Math.subtractExact(value, Math.multiplyExact(row[transients[j]], nums[j]));
+                }
+                if (value != Math.multiplyExact(row[a], den)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    // The chain starts in the first transient state, or -1 if all states are absorbing
+    static int firstTransientState(int[][] m) {
+        for (int i = 0; i < m.length; i++) {
+            if (!AbsMarkovChain.isAbsorbing(i, m[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-        return convertResult(absorbProbs);
+    // Breadth-first search over transitions with non-zero weight
+    static boolean[] reachableStates(int[][] m, int start) {
+        boolean[] reachable = new boolean[m.length];
+        int[] queue = new int[m.length];
+        int tail = 0;
+        reachable[start] = true;
+        queue[tail++] = start;
+        for (int head = 0; head < tail; head++) {
+            int[] row = m[queue[head]];
+            for (int j = 0; j < row.length; j++) {
+                if (row[j] != 0 && !reachable[j]) {
+                    reachable[j] = true;
+                    queue[tail++] = j;
+                }
+            }
+        }
+        return reachable;
+    }
+
+    // Sub-chain of reachable states, in the same order. There are no transitions from them to other states,
+    // so weights of the rows stay the same.
+    static int[][] prune(int[][] m, boolean[] reachable) {
+        int count = 0;
+        for (boolean r : reachable) {
+            if (r) {
+                count++;
+            }
+        }
+        if (count == m.length) {
+            return m;
+        }
+        int[][] pruned = new int[count][count];
+        for (int i = 0, pi = 0; i < m.length; i++) {
+            if (!reachable[i]) {
+                continue;
+            }
+            for (int j = 0, pj = 0; j < m.length; j++) {
+                if (reachable[j]) {
+                    pruned[pi][pj++] = m[i][j];
+                }
+            }
+            pi++;
+        }
+        return pruned;
+    }
+
+    // Result for the pruned chain, with zero probabilities for unreachable absorbing states
+    private static int[] expandResult(int[] prunedResult, int[][] m, boolean[] reachable) {
+        int absorbing = 0;
+        for (int i = 0; i < m.length; i++) {
+            if (AbsMarkovChain.isAbsorbing(i, m[i])) {
+                absorbing++;
+            }
+        }
+        if (absorbing + 1 == prunedResult.length) {
+            return prunedResult;
+        }
+        int[] result = new int[absorbing + 1];
+        for (int i = 0, a = 0, pa = 0; i < m.length; i++) {
+            if (AbsMarkovChain.isAbsorbing(i, m[i])) {
+                result[a++] = reachable[i] ? prunedResult[pa++] : 0;
+            }
+        }
+        result[absorbing] = prunedResult[prunedResult.length - 1];
+        return result;
+    }
+
+    // Same as solution(m), for the chain given in compressed sparse row format:
+    // weights of transitions from state i are weights[rowPtr[i]..rowPtr[i + 1]), to states cols[rowPtr[i]..rowPtr[i + 1])
+    public static int[] solution(int[] rowPtr, int[] cols, int[] weights) {
+        return new SparseChain(rowPtr, cols, weights).solve();
     }
 
     private static int[] convertResult(Mat absorbProbs) {
-        int[] result = new int[absorbProbs.width() + 1];
-        for (int i = 0; i < absorbProbs.width(); i++) {
-            result[i] = (int) absorbProbs.nums[0][i];
+        return convertResult(absorbProbs, 0);
+    }
+
+    // Numerators of the row with their common denominator at the end
+    private static int[] convertResult(Mat mat, int row) {
+        int[] result = new int[mat.width() + 1];
+        for (int i = 0; i < mat.width(); i++) {
+            result[i] = mat.bigNum(row, i).intValueExact();
         }
-        result[absorbProbs.width()] = (int) absorbProbs.dens[0];
+        result[mat.width()] = mat.bigDen(row).intValueExact();
         return result;
     }
 
+    // Absorbing probabilities and expected number of steps before absorption, for every transient start state.
+    // Both are found from one system (I - Q) * X = [R | 1], as X = [N * R | N * 1], where N = (I - Q)^-1,
+    // so expected numbers of steps are row sums of N.
+    // Transient states which can't reach any absorbing state make I - Q singular, so they are replaced by one
+    // extra absorbing state, the trap. Probabilities of the trap are dropped from the result, and expected
+    // steps are infinite for every state which can reach the trap.
+    public static Absorption absorption(int[][] m) {
+        int n = m.length;
+        boolean[] isAbsorbing = new boolean[n];
+        int absorbing = 0;
+        for (int i = 0; i < n; i++) {
+            isAbsorbing[i] = AbsMarkovChain.isAbsorbing(i, m[i]);
+            if (isAbsorbing[i]) {
+                absorbing++;
+            }
+        }
+        boolean[] trapped = invert(statesReaching(m, isAbsorbing));
+        boolean[] mayBeTrapped = statesReaching(m, trapped);
+        int[] states = new int[n - absorbing];
+        for (int i = 0, k = 0; i < n; i++) {
+            if (!isAbsorbing[i]) {
+                states[k++] = i;
+            }
+        }
+
+        int[][] reduced = trap(m, trapped);
+        boolean hasTrap = reduced != m;
+        AbsMarkovChain chain = AbsMarkovChain.parse(reduced);
+        int size = chain.trans.height();
+        int width = chain.absorb.width();
+        Mat rhs = new Mat(size, width + 1);
+        for (int i = 0; i < size; i++) {
+            chain.absorb.copyRow(i, rhs, i, 0, false);
+            rhs.addValue(i, width, 1, 1);
+        }
+        Mat x = Mat.identity(size).minus(chain.trans).solve(rhs, Elimination.BAREISS);
+
+        int[][] probabilities = new int[states.length][];
+        int[][] expectedSteps = new int[states.length][];
+        for (int k = 0, i = 0; k < states.length; k++) {
+            if (trapped[states[k]]) {
+                probabilities[k] = new int[absorbing + 1];
+                probabilities[k][absorbing] = 1;
+                expectedSteps[k] = NEVER_ABSORBED.clone();
+                continue;
+            }
+            // Probabilities and steps have separate common denominators
+            Mat probs = new Mat(1, absorbing);
+            BigInteger den = x.bigDen(i);
+            for (int j = 0; j < absorbing; j++) {
+                probs.addValue(0, j, x.bigNum(i, j), den);
+            }
+            probs.simplifyRow(0);
+            probabilities[k] = convertResult(probs, 0);
+            if (hasTrap && mayBeTrapped[states[k]]) {
+                expectedSteps[k] = NEVER_ABSORBED.clone();
+            } else {
+                Mat steps = new Mat(1, 1);
+                steps.addValue(0, 0, x.bigNum(i, width), den);
+                steps.simplifyRow(0);
+                expectedSteps[k] = convertResult(steps, 0);
+            }
+            i++;
+        }
+        return new Absorption(states, probabilities, expectedSteps);
+    }
+
+    // Expected number of steps for states which may never be absorbed, as 1 / 0
+    static final int[] NEVER_ABSORBED = {1, 0};
+
+    // States which can reach any of the target states (targets included), by breadth-first search over
+    // reversed transitions
+    static boolean[] statesReaching(int[][] m, boolean[] targets) {
+        int n = m.length;
+        boolean[] reaching = targets.clone();
+        int[] queue = new int[n];
+        int tail = 0;
+        for (int i = 0; i < n; i++) {
+            if (targets[i]) {
+                queue[tail++] = i;
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            int j = queue[head];
+            for (int i = 0; i < n; i++) {
+                if (m[i][j] != 0 && !reaching[i]) {
+                    reaching[i] = true;
+                    queue[tail++] = i;
+                }
+            }
+        }
+        return reaching;
+    }
+
+    private static boolean[] invert(boolean[] values) {
+        boolean[] inverted = new boolean[values.length];
+        for (int i = 0; i < values.length; i++) {
+            inverted[i] = !values[i];
+        }
+        return inverted;
+    }
+
+    // Chain without trapped states, and with one more absorbing state at the end, which gets all transitions
+    // to them. The same matrix if there are no trapped states.
+    private static int[][] trap(int[][] m, boolean[] trapped) {
+        int count = 0;
+        for (boolean t : trapped) {
+            if (!t) {
+                count++;
+            }
+        }
+        if (count == m.length) {
+            return m;
+        }
+        int[][] reduced = new int[count + 1][count + 1];
+        for (int i = 0, ri = 0; i < m.length; i++) {
+            if (trapped[i]) {
+                continue;
+            }
+            for (int j = 0, rj = 0; j < m.length; j++) {
+                if (trapped[j]) {
+                    reduced[ri][count] += m[i][j];
+                } else {
+                    reduced[ri][rj++] = m[i][j];
+                }
+            }
+            ri++;
+        }
+        return reduced;
+    }
+
+    public static class Absorption {
+        // Transient states, in the same order as the results below
+        public final int[] states;
+        // For each state, same as solution(m) would return if it was the start state
+        public final int[][] probabilities;
+        // Expected number of steps before absorption for each state, as {numerator, denominator},
+        // or NEVER_ABSORBED = {1, 0} if the state may get into a closed loop of transient states
+        public final int[][] steps;
+
+        Absorption(int[] states, int[][] probabilities, int[][] steps) {
+            this.states = states;
+            this.probabilities = probabilities;
+            this.steps = steps;
+        }
+    }
+
     static class AbsMarkovChain {
         final Mat trans;
         final Mat absorb;
@@ -51,40 +501,31 @@ public class Solution {
             this.absorb = absorb;
         }
 
+        // Transient states go first and absorbing states after them, both in the original order.
+        // Input matrix is not modified.
         static AbsMarkovChain parse(int[][] m) {
-            int absorbIdx = -1;
+            int[] transients = new int[m.length];
+            int[] absorbing = new int[m.length];
+            int transientCount = 0;
+            int absorbingCount = 0;
             for (int i = 0; i < m.length; i++) {
                 if (isAbsorbing(i, m[i])) {
-                    if (absorbIdx == -1) {
-                        absorbIdx = i;
-                    }
+                    absorbing[absorbingCount++] = i;
                 } else {
-                    // Reorder rows (and columns) in case absorbing state is not at the end of the list.
-                    if (absorbIdx != -1) {
-                        for (int j = i; j > absorbIdx; j--) {
-                            int[] tmpRow = m[j];
-                            m[j] = m[j - 1];
-                            m[j - 1] = tmpRow;
-                            for (int k = 0; k < m.length; k++) {
-                                int tmp = m[k][j];
-                                m[k][j] = m[k][j - 1];
-                                m[k][j - 1] = tmp;
-                            }
-                        }
-                        absorbIdx++;
-                    }
+                    transients[transientCount++] = i;
                 }
             }
-            Mat trans = new Mat(absorbIdx, absorbIdx);
-            Mat absorb = new Mat(absorbIdx, m.length - absorbIdx);
-            for (int i = 0; i < absorbIdx; i++) {
-                int den = Arrays.stream(m[i]).sum();
-                for (int j = 0; j < trans.width(); j++) {
-                    trans.addValue(i, j, m[i][j], den);
+            Mat trans = new Mat(transientCount, transientCount);
+            Mat absorb = new Mat(transientCount, absorbingCount);
+            for (int i = 0; i < transientCount; i++) {
+                int[] row = m[transients[i]];
+                int den = Arrays.stream(row).sum();
+                for (int j = 0; j < transientCount; j++) {
+                    trans.addValue(i, j, row[transients[j]], den);
                 }
                 trans.simplifyRow(i);
-                for (int j = 0; j < absorb.width(); j++) {
-                    absorb.addValue(i, j, m[i][j + absorbIdx], den);
+                for (int j = 0; j < absorbingCount; j++) {
+                    absorb.addValue(i, j, row[absorbing[j]], den);
                 }
                 absorb.simplifyRow(i);
             }
@@ -101,13 +542,645 @@ public class Solution {
         }
     }
 
+    // Absorbing chain which is modified row by row, and solved after each modification.
+    // Fundamental matrix N = (I - Q)^-1 is kept, and when a transient row is replaced, row r of I - Q changes by d,
+    // so the new matrix is I - Q + e_r * d, and its inverse is found by Sherman-Morrison formula in O(n^2):
+    // N' = N - (N * e_r) * (d * N) / (1 + d * N * e_r)
+    // https://en.wikipedia.org/wiki/Sherman%E2%80%93Morrison_formula
+    // Replacing k rows is done as k such updates, which is the same as a rank-k Woodbury update.
+    public static class IncrementalChain {
+        private final int[][] m;
+        // The start state, or -1 if all states are absorbing
+        private int start;
+        // States which can be reached from the start state, other states don't affect the result, and their part
+        // of I - Q may be singular, as in solution(m)
+        private boolean[] reachable;
+        // Index of each reachable state among reachable transient or absorbing states
+        private final int[] index;
+        private final boolean[] absorbing;
+        private Mat fundamental;
+        private Mat absorb;
+
+        public IncrementalChain(int[][] m) {
+            this.m = new int[m.length][];
+            for (int i = 0; i < m.length; i++) {
+                this.m[i] = m[i].clone();
+            }
+            this.index = new int[m.length];
+            this.absorbing = new boolean[m.length];
+            rebuild();
+        }
+
+        // Prune the chain and invert I - Q from scratch. Fields are changed only if it succeeds.
+        private void rebuild() {
+            int newStart = firstTransientState(m);
+            boolean[] newReachable = new boolean[m.length];
+            Mat newFundamental = new Mat(0, 0);
+            Mat newAbsorb = new Mat(0, 0);
+            if (newStart != -1) {
+                newReachable = reachableStates(m, newStart);
+                AbsMarkovChain chain = AbsMarkovChain.parse(prune(m, newReachable));
+                int transients = chain.trans.height();
+                newFundamental = Mat.identity(transients)
+                        .minus(chain.trans)
+                        .solve(Mat.identity(transients), Elimination.BAREISS);
+                newAbsorb = chain.absorb;
+            }
+            start = newStart;
+            reachable = newReachable;
+            fundamental = newFundamental;
+            absorb = newAbsorb;
+            int transients = 0;
+            int absorbingCount = 0;
+            for (int i = 0; i < m.length; i++) {
+                absorbing[i] = AbsMarkovChain.isAbsorbing(i, m[i]);
+                if (reachable[i]) {
+                    index[i] = absorbing[i] ? absorbingCount++ : transients++;
+                }
+            }
+        }
+
+        // Same result as solution(m) for the current chain
+        public int[] solution() {
+            // Corner case - all states are absorbing
+            if (start == -1) {
+                int[] result = new int[m.length + 1];
+                result[0] = 1;
+                result[m.length] = 1;
+                return result;
+            }
+            Mat z = Mat.unitColumn(fundamental.height(), 0).transpose().multiply(fundamental);
+            return expandResult(convertResult(z.multiply(absorb)), m, reachable);
+        }
+
+        public void updateRows(int[] states, int[][] rows) {
+            for (int k = 0; k < states.length; k++) {
+                updateRow(states[k], rows[k]);
+            }
+        }
+
+        // If the update fails, e.g. I - Q becomes singular, the chain stays as it was before it
+        public void updateRow(int state, int[] row) {
+            if (row.length != m.length) {
+                throw new IllegalArgumentException("Row length " + row.length + " != " + m.length);
+            }
+            int[] oldRow = m[state];
+            m[state] = row.clone();
+            try {
+                if (AbsMarkovChain.isAbsorbing(state, row) != absorbing[state]
+                        || reachable[state] && !absorbing[state]
+                        && !Arrays.equals(reachable, reachableStates(m, start))) {
+                    // Sets of transient, absorbing or reachable states are changed
+                    rebuild();
+                } else if (reachable[state] && !absorbing[state]) {
+                    replaceRow(state, oldRow, m[state]);
+                }
+            } catch (RuntimeException e) {
+                m[state] = oldRow;
+                throw e;
+            }
+        }
+
+        // Sherman-Morrison update for the reachable transient row, all states of both rows are reachable.
+        // Fields are changed only if it succeeds.
+        private void replaceRow(int state, int[] oldRow, int[] row) {
+            int size = fundamental.height();
+            int r = index[state];
+            long oldSum = Arrays.stream(oldRow).asLongStream().sum();
+            long sum = Arrays.stream(row).asLongStream().sum();
+            // Difference between new and old row of I - Q
+            Mat d = new Mat(1, size);
+            for (int j = 0; j < m.length; j++) {
+                if (reachable[j] && !absorbing[j]) {
+                    d.addValue(0, index[j], oldRow[j], oldSum);
+                    d.addValue(0, index[j], -row[j], sum);
+                }
+            }
+            d.simplifyRow(0);
+            Mat v = d.multiply(fundamental);
+            // 1 / (1 + v[r]) = den / (num + den)
+            BigInteger num = v.bigNum(0, r);
+            BigInteger den = v.bigDen(0);
+            BigInteger scaleDen = num.add(den);
+            if (scaleDen.signum() == 0) {
+                throw new ArithmeticException("Singular matrix");
+            }
+            if (scaleDen.signum() < 0) {
+                den = den.negate();
+                scaleDen = scaleDen.negate();
+            }
+            Mat scale = new Mat(1, 1);
+            scale.addValue(0, 0, den, scaleDen);
+            scale.simplifyRow(0);
+            Mat u = fundamental.multiply(Mat.unitColumn(size, r)).multiply(scale);
+            fundamental = fundamental.minus(u.multiply(v));
+            // Row r of R
+            absorb.clearRow(r);
+            for (int j = 0; j < m.length; j++) {
+                if (reachable[j] && absorbing[j]) {
+                    absorb.addValue(r, index[j], row[j], sum);
+                }
+            }
+            absorb.simplifyRow(r);
+        }
+    }
+
+    // Absorbing Markov chain with few transitions per state, in compressed sparse row format:
+    // https://en.wikipedia.org/wiki/Sparse_matrix#Compressed_sparse_row_(CSR,_CRS_or_Yale_format)
+    // Transition probability from state i to cols[k] is weights[k] / (sum of weights of row i),
+    // for k in rowPtr[i]..rowPtr[i + 1)
+    static class SparseChain {
+        final int[] rowPtr;
+        final int[] cols;
+        final int[] weights;
+
+        // Largest primes below 2^31, so that product of two residues fits into long
+        static final long[] PRIMES = {
+                2147483647, 2147483629, 2147483587, 2147483579, 2147483563, 2147483549, 2147483543, 2147483497
+        };
+        // Answer fits into int, so product of this many primes exceeds 2 * max(num) * max(den)
+        static final int RESTORE_PRIMES = 3;
+
+        SparseChain(int[] rowPtr, int[] cols, int[] weights) {
+            this.rowPtr = rowPtr;
+            this.cols = cols;
+            this.weights = weights;
+        }
+
+        static SparseChain parse(int[][] m) {
+            int[] rowPtr = new int[m.length + 1];
+            for (int i = 0; i < m.length; i++) {
+                rowPtr[i + 1] = rowPtr[i];
+                for (int w : m[i]) {
+                    if (w != 0) {
+                        rowPtr[i + 1]++;
+                    }
+                }
+            }
+            int[] cols = new int[rowPtr[m.length]];
+            int[] weights = new int[cols.length];
+            for (int i = 0, k = 0; i < m.length; i++) {
+                for (int j = 0; j < m[i].length; j++) {
+                    if (m[i][j] != 0) {
+                        cols[k] = j;
+                        weights[k++] = m[i][j];
+                    }
+                }
+            }
+            return new SparseChain(rowPtr, cols, weights);
+        }
+
+        int size() {
+            return rowPtr.length - 1;
+        }
+
+        // Breadth-first search over transitions, same as reachableStates(m, start)
+        boolean[] reachableStates(int start) {
+            boolean[] reachable = new boolean[size()];
+            int[] queue = new int[size()];
+            int tail = 0;
+            reachable[start] = true;
+            queue[tail++] = start;
+            for (int head = 0; head < tail; head++) {
+                int i = queue[head];
+                for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++) {
+                    if (weights[k] != 0 && !reachable[cols[k]]) {
+                        reachable[cols[k]] = true;
+                        queue[tail++] = cols[k];
+                    }
+                }
+            }
+            return reachable;
+        }
+
+        boolean[] absorbingStates() {
+            boolean[] absorbing = new boolean[size()];
+            for (int i = 0; i < absorbing.length; i++) {
+                absorbing[i] = true;
+                for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++) {
+                    if (cols[k] != i) {
+                        absorbing[i] = false;
+                        break;
+                    }
+                }
+            }
+            return absorbing;
+        }
+
+        // Same approach as in solution(m): first row z of (I - Q)^-1 is found from (I - Q)^T * z^T = e0^T.
+        // Row i of (I - Q) is N[i] / S[i], where S[i] is sum of weights of the row, and N is integer matrix:
+        // N[i][i] = S[i] - (weight of self-loop), N[i][j] = -(weight of i -> j).
+        // Let N^T * y = e0, then z[i] = y[i] * S[i], and absorbing probabilities are
+        // (z * R)[a] = sum(z[i] * (weight of i -> a) / S[i]) = sum(y[i] * (weight of i -> a))
+        //
+        // Exact rational solution of a big system has huge numerators and denominators in intermediate steps,
+        // while the answer is small: it has to fit into int. So we solve the system modulo several primes,
+        // where all numbers fit into long, and restore the answer by Chinese remainder theorem and
+        // rational reconstruction. One more prime is used to verify the answer.
+        int[] solve() {
+            int n = size();
+            boolean[] isAbsorbing = absorbingStates();
+            int start = 0;
+            while (start < n && isAbsorbing[start]) {
+                start++;
+            }
+            // Corner case - all states are absorbing
+            if (start == n) {
+                int[] result = new int[n + 1];
+                result[0] = 1;
+                result[n] = 1;
+                return result;
+            }
+            // As in solution(m), transient states which can't be reached from the start state are left out of
+            // the system, and unreachable absorbing states get zero probabilities
+            boolean[] reachable = reachableStates(start);
+            // Indices of reachable transient states and all absorbing states, in the reduced system
+            int[] index = new int[n];
+            int transients = 0;
+            int absorbing = 0;
+            for (int i = 0; i < n; i++) {
+                if (isAbsorbing[i]) {
+                    index[i] = absorbing++;
+                } else if (reachable[i]) {
+                    index[i] = transients++;
+                }
+            }
+            // Equation j of N^T * y = e0 is column j of N: sum(N[i][j] * y[i]) = (j == 0 ? 1 : 0)
+            // As in solution(m), start state is the first transient state
+            int[][] eqVars = new int[transients][];
+            long[][] eqCoefs = new long[transients][];
+            int[] eqLens = new int[transients];
+            for (int i = 0; i < n; i++) {
+                if (isAbsorbing[i] || !reachable[i]) {
+                    continue;
+                }
+                long sum = 0;
+                long self = 0;
+                for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++) {
+                    sum += weights[k];
+                    if (cols[k] == i) {
+                        self += weights[k];
+                    }
+                }
+                int var = index[i];
+                addTerm(eqVars, eqCoefs, eqLens, var, var, sum - self);
+                for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++) {
+                    int j = cols[k];
+                    if (j != i && !isAbsorbing[j] && reachable[j]) {
+                        addTerm(eqVars, eqCoefs, eqLens, index[j], var, -weights[k]);
+                    }
+                }
+            }
+
+            // Absorbing probabilities modulo each prime
+            long[] primes = new long[RESTORE_PRIMES + 1];
+            long[][] probs = new long[RESTORE_PRIMES + 1][];
+            int solved = 0;
+            for (int pi = 0; pi < PRIMES.length && solved < primes.length; pi++) {
+                long p = PRIMES[pi];
+                SparseSystem system = new SparseSystem(transients, p);
+                for (int eq = 0; eq < transients; eq++) {
+                    system.setEquation(eq, eqVars[eq], eqCoefs[eq], eqLens[eq], eq == 0 ? 1 : 0);
+                }
+                long[] y = system.solve();
+                if (y == null) {
+                    // Singular modulo p, while it may be not singular in rationals
+                    continue;
+                }
+                long[] prob = new long[absorbing];
+                for (int i = 0; i < n; i++) {
+                    if (isAbsorbing[i] || !reachable[i]) {
+                        continue;
+                    }
+                    for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++) {
+                        int a = cols[k];
+                        if (isAbsorbing[a]) {
+                            prob[index[a]] = (prob[index[a]] + y[index[i]] * weights[k]) % p;
+                        }
+                    }
+                }
+                primes[solved] = p;
+                probs[solved++] = prob;
+            }
+            if (solved < primes.length) {
+                throw new ArithmeticException("Singular system");
+            }
+            return restore(probs, primes);
+        }
+
+        // Restore fractions with common denominator from their residues modulo first RESTORE_PRIMES primes,
+        // and check the result against the last prime
+        private static int[] restore(long[][] probs, long[] primes) {
+            int absorbing = probs[0].length;
+            BigInteger mod = BigInteger.ONE;
+            BigInteger[] values = new BigInteger[absorbing];
+            Arrays.fill(values, BigInteger.ZERO);
+            for (int k = 0; k < RESTORE_PRIMES; k++) {
+                BigInteger p = BigInteger.valueOf(primes[k]);
+                BigInteger inv = mod.mod(p).modInverse(p);
+                for (int a = 0; a < absorbing; a++) {
+                    BigInteger t = BigInteger.valueOf(probs[k][a]).subtract(values[a]).multiply(inv).mod(p);
+                    values[a] = values[a].add(mod.multiply(t));
+                }
+                mod = mod.multiply(p);
+            }
+            BigInteger[] nums = new BigInteger[absorbing];
+            BigInteger[] dens = new BigInteger[absorbing];
+            BigInteger den = BigInteger.ONE;
+            for (int a = 0; a < absorbing; a++) {
+                BigInteger[] fraction = reconstruct(values[a], mod);
+                nums[a] = fraction[0];
+                dens[a] = fraction[1];
+                den = den.divide(den.gcd(dens[a])).multiply(dens[a]);
+            }
+            int[] result = new int[absorbing + 1];
+            BigInteger check = BigInteger.valueOf(primes[RESTORE_PRIMES]);
+            for (int a = 0; a < absorbing; a++) {
+                BigInteger num = nums[a].multiply(den.divide(dens[a]));
+                if (!num.subtract(den.multiply(BigInteger.valueOf(probs[RESTORE_PRIMES][a]))).mod(check).equals(BigInteger.ZERO)) {
+                    throw new ArithmeticException("Result doesn't fit into int");
+                }
+                result[a] = num.intValueExact();
+            }
+            result[absorbing] = den.intValueExact();
+            return result;
+        }
+
+        // Rational reconstruction (Wang): run extended Euclidean algorithm on (mod, value) until remainder fits into int
+        // Find num / den = value (modulo mod), where both num and den fit into int
+        private static BigInteger[] reconstruct(BigInteger value, BigInteger mod) {
+            BigInteger bound = BigInteger.valueOf(Integer.MAX_VALUE);
+            BigInteger r0 = mod;
+            BigInteger r1 = value;
+            BigInteger t0 = BigInteger.ZERO;
+            BigInteger t1 = BigInteger.ONE;
+            while (r1.compareTo(bound) > 0) {
+                BigInteger q = r0.divide(r1);
+                BigInteger r = r0.subtract(q.multiply(r1));
+                r0 = r1;
+                r1 = r;
+                BigInteger t = t0.subtract(q.multiply(t1));
+                t0 = t1;
+                t1 = t;
+            }
+            if (t1.signum() < 0) {
+                r1 = r1.negate();
+                t1 = t1.negate();
+            }
+            if (t1.compareTo(bound) > 0 || !r1.gcd(t1).equals(BigInteger.ONE)) {
+                throw new ArithmeticException("Result doesn't fit into int");
+            }
+            return new BigInteger[] {r1, t1};
+        }
+
+        private static void addTerm(int[][] eqVars, long[][] eqCoefs, int[] eqLens, int eq, int var, long coef) {
+            if (eqVars[eq] == null) {
+                eqVars[eq] = new int[4];
+                eqCoefs[eq] = new long[4];
+            } else if (eqLens[eq] == eqVars[eq].length) {
+                eqVars[eq] = Arrays.copyOf(eqVars[eq], eqLens[eq] * 2);
+                eqCoefs[eq] = Arrays.copyOf(eqCoefs[eq], eqLens[eq] * 2);
+            }
+            eqVars[eq][eqLens[eq]] = var;
+            eqCoefs[eq][eqLens[eq]++] = coef;
+        }
+    }
+
+    // Square system of linear equations with few non-zero coefficients per equation, modulo prime p.
+    // Solved by Gaussian elimination, where variable to eliminate is picked by minimum degree heuristic:
+    // https://en.wikipedia.org/wiki/Minimum_degree_algorithm
+    // Variable which is present in the smallest number of remaining equations is eliminated first,
+    // using the shortest equation it is present in, which keeps fill-in (new non-zero coefficients) low.
+    static class SparseSystem {
+        final int size;
+        final long p;
+        // Equations are sorted arrays of variable indices with coefficients, right side is stored separately
+        final int[][] vars;
+        final long[][] coefs;
+        final int[] lens;
+        final long[] rhs;
+        // Equations which contain each variable (may contain stale entries, which are skipped)
+        final int[][] varEqs;
+        final int[] varEqLens;
+        // Number of remaining equations which contain each variable
+        final int[] degrees;
+
+        SparseSystem(int size, long p) {
+            this.size = size;
+            this.p = p;
+            this.vars = new int[size][];
+            this.coefs = new long[size][];
+            this.lens = new int[size];
+            this.rhs = new long[size];
+            this.varEqs = new int[size][4];
+            this.varEqLens = new int[size];
+            this.degrees = new int[size];
+        }
+
+        // Duplicate variables are summed up
+        void setEquation(int eq, int[] eqVars, long[] eqCoefs, int len, long eqRhs) {
+            // Sort terms by variable, keeping index of each term in lower bits
+            long[] order = new long[len];
+            for (int k = 0; k < len; k++) {
+                order[k] = ((long) eqVars[k] << 32) | k;
+            }
+            Arrays.sort(order);
+            int[] vs = new int[len];
+            long[] cs = new long[len];
+            int n = 0;
+            for (long o : order) {
+                int v = (int) (o >>> 32);
+                long c = Math.floorMod(eqCoefs[(int) o], p);
+                if (n > 0 && vs[n - 1] == v) {
+                    cs[n - 1] = (cs[n - 1] + c) % p;
+                } else {
+                    vs[n] = v;
+                    cs[n++] = c;
+                }
+            }
+            int m = 0;
+            for (int k = 0; k < n; k++) {
+                if (cs[k] != 0) {
+                    vs[m] = vs[k];
+                    cs[m++] = cs[k];
+                }
+            }
+            vars[eq] = vs;
+            coefs[eq] = cs;
+            lens[eq] = m;
+            rhs[eq] = Math.floorMod(eqRhs, p);
+            for (int k = 0; k < m; k++) {
+                addVarEq(vs[k], eq);
+                degrees[vs[k]]++;
+            }
+        }
+
+        private void addVarEq(int var, int eq) {
+            if (varEqLens[var] == varEqs[var].length) {
+                varEqs[var] = Arrays.copyOf(varEqs[var], varEqLens[var] * 2);
+            }
+            varEqs[var][varEqLens[var]++] = eq;
+        }
+
+        // Index of variable in equation, or negative value if it is not there
+        private int find(int eq, int var) {
+            return Arrays.binarySearch(vars[eq], 0, lens[eq], var);
+        }
+
+        // Solution modulo p, or null if the system is singular modulo p
+        long[] solve() {
+            boolean[] eliminatedVars = new boolean[size];
+            boolean[] pivotEqs = new boolean[size];
+            int[] pivotOf = new int[size];
+            int[] order = new int[size];
+            // Variables by degree, with lazy removal of outdated entries
+            PriorityQueue<Long> queue = new PriorityQueue<>();
+            for (int v = 0; v < size; v++) {
+                queue.add(((long) degrees[v] << 32) | v);
+            }
+            for (int step = 0; step < size; step++) {
+                int var;
+                while (true) {
+                    long top = queue.poll();
+                    var = (int) top;
+                    if (!eliminatedVars[var] && degrees[var] == (int) (top >>> 32)) {
+                        break;
+                    }
+                }
+                // Shortest remaining equation with this variable
+                int pivot = -1;
+                for (int k = 0; k < varEqLens[var]; k++) {
+                    int eq = varEqs[var][k];
+                    if (!pivotEqs[eq] && find(eq, var) >= 0 && (pivot == -1 || lens[eq] < lens[pivot])) {
+                        pivot = eq;
+                    }
+                }
+                if (pivot == -1) {
+                    return null;
+                }
+                eliminatedVars[var] = true;
+                pivotEqs[pivot] = true;
+                pivotOf[var] = pivot;
+                order[step] = var;
+                // Divide pivot equation to have 1 as the coefficient of the variable
+                long inv = inverse(coefs[pivot][find(pivot, var)]);
+                for (int k = 0; k < lens[pivot]; k++) {
+                    coefs[pivot][k] = coefs[pivot][k] * inv % p;
+                    int v = vars[pivot][k];
+                    degrees[v]--;
+                    if (!eliminatedVars[v]) {
+                        queue.add(((long) degrees[v] << 32) | v);
+                    }
+                }
+                rhs[pivot] = rhs[pivot] * inv % p;
+                // Eliminate variable from all other remaining equations
+                for (int k = 0; k < varEqLens[var]; k++) {
+                    int eq = varEqs[var][k];
+                    if (!pivotEqs[eq] && find(eq, var) >= 0) {
+                        eliminate(eq, pivot, var, queue, eliminatedVars);
+                    }
+                }
+            }
+            // Back substitution, pivot equation of each variable contains only variables eliminated after it
+            long[] res = new long[size];
+            for (int step = size - 1; step >= 0; step--) {
+                int var = order[step];
+                int eq = pivotOf[var];
+                long value = rhs[eq];
+                for (int k = 0; k < lens[eq]; k++) {
+                    int v = vars[eq][k];
+                    if (v != var) {
+                        value = (value + (p - coefs[eq][k]) * res[v]) % p;
+                    }
+                }
+                res[var] = value;
+            }
+            return res;
+        }
+
+        // eq := eq - eq[var] * pivot, merging sorted variable lists. Pivot equation has 1 as coefficient of var.
+        private void eliminate(int eq, int pivot, int var, PriorityQueue<Long> queue, boolean[] eliminatedVars) {
+            long factor = p - coefs[eq][find(eq, var)];
+            int[] vs = new int[lens[eq] + lens[pivot]];
+            long[] cs = new long[vs.length];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < lens[eq] || j < lens[pivot]) {
+                int vi = i < lens[eq] ? vars[eq][i] : Integer.MAX_VALUE;
+                int vj = j < lens[pivot] ? vars[pivot][j] : Integer.MAX_VALUE;
+                int v = Math.min(vi, vj);
+                long c;
+                if (vi == vj) {
+                    c = (coefs[eq][i++] + factor * coefs[pivot][j++]) % p;
+                    if (c == 0) {
+                        // Cancellation, including the eliminated variable
+                        degrees[v]--;
+                        if (!eliminatedVars[v]) {
+                            queue.add(((long) degrees[v] << 32) | v);
+                        }
+                    }
+                } else if (vi < vj) {
+                    c = coefs[eq][i++];
+                } else {
+                    // Fill-in
+                    c = factor * coefs[pivot][j++] % p;
+                    addVarEq(v, eq);
+                    degrees[v]++;
+                    queue.add(((long) degrees[v] << 32) | v);
+                }
+                if (c != 0) {
+                    vs[n] = v;
+                    cs[n++] = c;
+                }
+            }
+            vars[eq] = vs;
+            coefs[eq] = cs;
+            lens[eq] = n;
+            rhs[eq] = (rhs[eq] + factor * rhs[pivot]) % p;
+        }
+
+        // Fermat's little theorem: a ^ (p - 2) * a = 1 (mod p)
+        private long inverse(long a) {
+            long res = 1;
+            long exp = p - 2;
+            while (exp > 0) {
+                if ((exp & 1) != 0) {
+                    res = res * a % p;
+                }
+                a = a * a % p;
+                exp >>= 1;
+            }
+            return res;
+        }
+    }
+
+    // Matrix of rational numbers, each row has common denominator.
+    // Rows are stored as longs, all the arithmetic on them is checked for overflow.
+    // Row which doesn't fit into longs is promoted to BigInteger, and demoted back when it is simplified enough.
     static class Mat {
-        final long[][] nums;
+        final int height;
+        final int width;
+        // Numerators of all rows in one array, row i starts at i * width
+        final long[] nums;
         final long[] dens;
+        // Promoted rows: bigNums[i] != null means row i is stored here and its nums, dens[i] should be ignored
+        final BigInteger[][] bigNums;
+        final BigInteger[] bigDens;
+
+        // Elimination in matrices with at least this many rows is done in parallel
+        static volatile int parallelThreshold = 128;
+        // Row buffer for checked arithmetic: the result is written here first, so that the row is not modified
+        // if it overflows. One per thread, as rows are updated in parallel.
+        private static final ThreadLocal<long[]> buffers = ThreadLocal.withInitial(() -> new long[0]);
 
         Mat(int height, int width) {
-            this.nums = new long[height][width];
+            this.height = height;
+            this.width = width;
+            this.nums = new long[height * width];
             this.dens = new long[height];
+            this.bigNums = new BigInteger[height][];
+            this.bigDens = new BigInteger[height];
             Arrays.fill(dens, 1);
         }
 
@@ -119,137 +1192,542 @@ public class Solution {
             return id;
         }
 
+        private static long[] buffer(int width) {
+            long[] buffer = buffers.get();
+            if (buffer.length < width) {
+                buffer = new long[width];
+                buffers.set(buffer);
+            }
+            return buffer;
+        }
+
+        void clearRow(int i) {
+            Arrays.fill(nums, i * width, (i + 1) * width, 0);
+            dens[i] = 1;
+            bigNums[i] = null;
+            bigDens[i] = null;
+        }
+
+        boolean isBig(int i) {
+            return bigNums[i] != null;
+        }
+
+        BigInteger bigNum(int i, int j) {
+            return isBig(i) ? bigNums[i][j] : BigInteger.valueOf(nums[i * width + j]);
+        }
+
+        BigInteger bigDen(int i) {
+            return isBig(i) ? bigDens[i] : BigInteger.valueOf(dens[i]);
+        }
+
+        void promote(int i) {
+            if (isBig(i)) {
+                return;
+            }
+            BigInteger[] row = new BigInteger[width];
+            for (int j = 0; j < row.length; j++) {
+                row[j] = BigInteger.valueOf(nums[i * width + j]);
+            }
+            bigDens[i] = BigInteger.valueOf(dens[i]);
+            bigNums[i] = row;
+        }
+
         void addValue(int i, int j, long num, long den) {
+            if (!isBig(i)) {
+                try {
+                    addLongValue(i, j, num, den);
+                    return;
+                } catch (ArithmeticException e) {
+                    promote(i);
+                }
+            }
+            addValue(i, j, BigInteger.valueOf(num), BigInteger.valueOf(den));
+        }
+
+        // Row is not modified if the result overflows
+        private void addLongValue(int i, int j, long num, long den) {
+            int offset = i * width;
             long oldDen = dens[i];
             if (oldDen == den) {
-                nums[i][j] += num;
+                nums[offset + j] = Math.addExact(nums[offset + j], num);
                 return;
             }
-            long lcm = den * oldDen / absGcd(den, oldDen);
-            if (lcm > oldDen) {
-                long mul = lcm / oldDen;
-                for (int k = 0; k < width(); k++) {
-                    nums[i][k] *= mul;
+            long lcm = Math.multiplyExact(den / absGcd(den, oldDen), oldDen);
+            long mul = lcm / oldDen;
+            long value = Math.addExact(Math.multiplyExact(nums[offset + j], mul), Math.multiplyExact(lcm / den, num));
+            if (mul != 1) {
+                long[] row = buffer(width);
+                for (int k = 0; k < width; k++) {
+                    row[k] = Math.multiplyExact(nums[offset + k], mul);
                 }
+                System.arraycopy(row, 0, nums, offset, width);
             }
-            nums[i][j] += (lcm / den) * num;
+            nums[offset + j] = value;
             dens[i] = lcm;
         }
 
+        void addValue(int i, int j, BigInteger num, BigInteger den) {
+            promote(i);
+            BigInteger oldDen = bigDens[i];
+            if (!oldDen.equals(den)) {
+                BigInteger lcm = den.divide(den.gcd(oldDen)).multiply(oldDen);
+                BigInteger mul = lcm.divide(oldDen);
+                if (!mul.equals(BigInteger.ONE)) {
+                    for (int k = 0; k < width; k++) {
+                        bigNums[i][k] = bigNums[i][k].multiply(mul);
+                    }
+                }
+                num = num.multiply(lcm.divide(den));
+                bigDens[i] = lcm;
+            }
+            bigNums[i][j] = bigNums[i][j].add(num);
+        }
+
         void simplifyRow(int i) {
+            if (isBig(i)) {
+                simplifyBigRow(i);
+                return;
+            }
+            int offset = i * width;
             long gcd = dens[i];
-            for (int j = 0; j < nums[i].length; j++) {
-                gcd = absGcd(nums[i][j], gcd);
+            for (int j = offset; j < offset + width; j++) {
+                gcd = absGcd(nums[j], gcd);
                 if (gcd == 1) {
-                    return;
+                    break;
                 }
             }
             if (dens[i] < 0) {
                 gcd = -gcd;
             }
+            if (gcd == 1) {
+                return;
+            }
             dens[i] /= gcd;
-            for (int j = 0; j < nums[i].length; j++) {
-                nums[i][j] /= gcd;
+            for (int j = offset; j < offset + width; j++) {
+                nums[j] /= gcd;
+            }
+        }
+
+        private void simplifyBigRow(int i) {
+            BigInteger[] row = bigNums[i];
+            BigInteger gcd = bigDens[i];
+            for (int j = 0; j < row.length && !gcd.equals(BigInteger.ONE); j++) {
+                gcd = gcd.gcd(row[j]);
+            }
+            if (bigDens[i].signum() < 0) {
+                gcd = gcd.negate();
+            }
+            if (!gcd.equals(BigInteger.ONE)) {
+                bigDens[i] = bigDens[i].divide(gcd);
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = row[j].divide(gcd);
+                }
+            }
+            // Demote row back to longs if it fits
+            if (bigDens[i].bitLength() >= 63) {
+                return;
+            }
+            for (BigInteger num : row) {
+                if (num.bitLength() >= 63) {
+                    return;
+                }
+            }
+            for (int j = 0; j < row.length; j++) {
+                nums[i * width + j] = row[j].longValue();
             }
+            dens[i] = bigDens[i].longValue();
+            bigNums[i] = null;
+            bigDens[i] = null;
         }
 
         Mat minus(Mat that) {
             Mat res = copy();
+            for (int i = 0; i < height; i++) {
+                for (int j = 0; j < width; j++) {
+                    if (that.isBig(i)) {
+                        res.addValue(i, j, that.bigNums[i][j].negate(), that.bigDens[i]);
+                    } else {
+                        res.addValue(i, j, -that.nums[i * width + j], that.dens[i]);
+                    }
+                }
+            }
+            return res;
+        }
+
+        static Mat unitColumn(int size, int i) {
+            Mat col = new Mat(size, 1);
+            col.addValue(i, 0, 1, 1);
+            return col;
+        }
+
+        Mat transpose() {
+            Mat res = new Mat(width(), height());
+            for (int i = 0; i < height(); i++) {
+                copyRow(i, res, i, true);
+            }
+            for (int j = 0; j < res.height(); j++) {
+                res.simplifyRow(j);
+            }
+            return res;
+        }
+
+        // Add row i of this matrix to row toRow of the other matrix starting at column offset,
+        // or to column toRow starting at row offset, if transposed
+        private void copyRow(int i, Mat to, int toRow, int offset, boolean transposed) {
+            for (int j = 0; j < width; j++) {
+                int row = transposed ? offset + j : toRow;
+                int col = transposed ? toRow : offset + j;
+                if (isBig(i)) {
+                    to.addValue(row, col, bigNums[i][j], bigDens[i]);
+                } else if (nums[i * width + j] != 0) {
+                    to.addValue(row, col, nums[i * width + j], dens[i]);
+                }
+            }
+        }
+
+        private void copyRow(int i, Mat to, int toRow, boolean transposed) {
+            copyRow(i, to, toRow, 0, transposed);
+        }
+
+        Mat invert() {
+            return solve(identity(height()));
+        }
+
+        // Find X such that this^T * X = rhs.
+        // Transposing rows with different denominators would bring each column to common denominator,
+        // which can be huge. Instead, we transpose numerators only: this = D^-1 * N, where D is diagonal matrix
+        // of row denominators, so this^T * X = N^T * (D^-1 * X), and X = D * Y, where N^T * Y = rhs
+        Mat solveTransposed(Mat rhs, Elimination elimination) {
+            Mat nt = new Mat(width(), height());
             for (int i = 0; i < height(); i++) {
                 for (int j = 0; j < width(); j++) {
-                    res.addValue(i, j, -that.nums[i][j], that.dens[i]);
+                    if (isBig(i)) {
+                        nt.addValue(j, i, bigNums[i][j], BigInteger.ONE);
+                    } else {
+                        nt.addValue(j, i, nums[i * width + j], 1);
+                    }
                 }
             }
+            Mat res = nt.solve(rhs, elimination);
+            for (int i = 0; i < res.height(); i++) {
+                if (isBig(i)) {
+                    res.multiplyRow(i, bigDens[i]);
+                } else {
+                    res.multiplyRow(i, dens[i]);
+                }
+                res.simplifyRow(i);
+            }
             return res;
         }
 
-        // Gauss-Jordan method
-        Mat invert() {
-            // Copy of current matrix with identity matrix on the right half
-            Mat mat = new Mat(height(), width() * 2);
-            System.arraycopy(this.dens, 0, mat.dens, 0, width());
+        void multiplyRow(int i, long factor) {
+            if (!isBig(i)) {
+                try {
+                    long[] row = buffer(width);
+                    for (int j = 0; j < width; j++) {
+                        row[j] = Math.multiplyExact(nums[i * width + j], factor);
+                    }
+                    System.arraycopy(row, 0, nums, i * width, width);
+                    return;
+                } catch (ArithmeticException e) {
+                    promote(i);
+                }
+            }
+            multiplyRow(i, BigInteger.valueOf(factor));
+        }
+
+        void multiplyRow(int i, BigInteger factor) {
+            promote(i);
+            for (int j = 0; j < width(); j++) {
+                bigNums[i][j] = bigNums[i][j].multiply(factor);
+            }
+        }
+
+        // Find X such that this * X = rhs
+        Mat solve(Mat rhs, Elimination elimination) {
+            return elimination == Elimination.BAREISS ? solveBareiss(rhs) : solve(rhs);
+        }
+
+        // Copy of current matrix with rhs on the right side
+        private Mat augment(Mat rhs) {
+            Mat mat = new Mat(height(), width() + rhs.width());
             for (int i = 0; i < mat.height(); i++) {
-                System.arraycopy(this.nums[i], 0, mat.nums[i], 0, width());
-                mat.nums[i][width() + i] = mat.dens[i];
+                this.copyRow(i, mat, i, 0, false);
+                rhs.copyRow(i, mat, i, width(), false);
             }
-            
+            return mat;
+        }
+
+        // Gauss-Jordan method: find X such that this * X = rhs
+        Mat solve(Mat rhs) {
+            Mat mat = augment(rhs);
+
             for (int i = 0; i < mat.height(); i++) {
                 // Switch row with zero value on diagonal with some other row
-                if (mat.nums[i][i] == 0) {
+                if (mat.bigNum(i, i).signum() == 0) {
                     int k = i + 1;
-                    while (mat.nums[k][i] == 0) {
+                    while (mat.bigNum(k, i).signum() == 0) {
                         k++;
                     }
-                    long[] tmpRow = mat.nums[k];
-                    mat.nums[k] = mat.nums[i];
-                    mat.nums[i] = tmpRow;
-                    long tmp = mat.dens[k];
-                    mat.dens[k] = mat.dens[i];
-                    mat.dens[i] = tmp;
+                    mat.swapRows(i, k);
                 }
                 // Divide row to make 1 in diagonal
-                if (mat.nums[i][i] != mat.dens[i]) {
-                    long num = mat.nums[i][i];
-                    long den = mat.dens[i];
-                    for (int j = 0; j < mat.width(); j++) {
-                        mat.nums[i][j] *= den;
-                    }
-                    mat.dens[i] *= num;
-                    mat.simplifyRow(i);
-                }
+                mat.divideRowByDiagonal(i);
                 // Remove this row mutiplied by some factor from all other rows, to have all 0 in the column
-                for (int k = 0; k < mat.height(); k++) {
-                    if (i == k || mat.nums[k][i] == 0) {
-                        continue;
-                    }
-                    long num = mat.nums[k][i];
-                    long den = mat.dens[i];
-                    mat.dens[k] *= den;
-                    for (int j = 0; j < mat.width(); j++) {
-                        mat.nums[k][j] *= den;
-                        mat.nums[k][j] -= mat.nums[i][j] * num;
+                int pivot = i;
+                forEachOtherRow(mat.height(), pivot, k -> mat.eliminate(k, pivot, pivot));
+            }
+            // Return right side of the matrix
+            Mat res = new Mat(height(), rhs.width());
+            for (int i = 0; i < height(); i++) {
+                if (mat.isBig(i)) {
+                    res.promote(i);
+                    System.arraycopy(mat.bigNums[i], width(), res.bigNums[i], 0, rhs.width());
+                    res.bigDens[i] = mat.bigDens[i];
+                } else {
+                    System.arraycopy(mat.nums, i * mat.width + width, res.nums, i * res.width, rhs.width);
+                    res.dens[i] = mat.dens[i];
+                }
+                res.simplifyRow(i);
+            }
+            return res;
+        }
+
+        // Fraction-free Gauss-Jordan elimination: https://en.wikipedia.org/wiki/Bareiss_algorithm
+        // Each equation is multiplied by its denominator, and then all the work is done on integers.
+        // On each step every element is updated as a[i][j] = (a[k][k] * a[i][j] - a[i][k] * a[k][j]) / prevPivot
+        // and the division is always exact, as all the elements are minors of the initial matrix.
+        // In the end all diagonal elements are equal to the last pivot (which is a determinant),
+        // so the solution is the right side divided by it.
+        Mat solveBareiss(Mat rhs) {
+            Mat mat = augment(rhs);
+            int n = height();
+            BigInteger[][] a = new BigInteger[n][];
+            for (int i = 0; i < n; i++) {
+                mat.promote(i);
+                a[i] = mat.bigNums[i];
+            }
+            BigInteger prevPivot = BigInteger.ONE;
+            for (int k = 0; k < n; k++) {
+                // Switch row with zero value on diagonal with some other row
+                if (a[k][k].signum() == 0) {
+                    int r = k + 1;
+                    while (a[r][k].signum() == 0) {
+                        r++;
                     }
-                    mat.simplifyRow(k);
+                    BigInteger[] tmpRow = a[r];
+                    a[r] = a[k];
+                    a[k] = tmpRow;
                 }
+                BigInteger pivot = a[k][k];
+                BigInteger divisor = prevPivot;
+                int col = k;
+                forEachOtherRow(n, k, i -> {
+                    BigInteger factor = a[i][col];
+                    // Elements left of column k are either 0, or diagonal, which will be set in the end
+                    for (int j = col + 1; j < a[i].length; j++) {
+                        BigInteger value = pivot.multiply(a[i][j]);
+                        if (factor.signum() != 0) {
+                            value = value.subtract(factor.multiply(a[col][j]));
+                        }
+                        a[i][j] = value.divide(divisor);
+                    }
+                    a[i][col] = BigInteger.ZERO;
+                });
+                prevPivot = pivot;
             }
-            // Return right half of the matrix
-            Mat res = new Mat(height(), width());
-            System.arraycopy(mat.dens, 0, res.dens, 0, width());
-            for (int i = 0; i < height(); i++) {
-                System.arraycopy(mat.nums[i], width(), res.nums[i], 0, width());
+            Mat res = new Mat(n, rhs.width());
+            for (int i = 0; i < n; i++) {
+                res.promote(i);
+                System.arraycopy(a[i], n, res.bigNums[i], 0, rhs.width());
+                res.bigDens[i] = prevPivot;
                 res.simplifyRow(i);
             }
             return res;
         }
 
+        // Updates of all other rows for one pivot are independent, so for big matrices they run in parallel
+        private static void forEachOtherRow(int height, int pivot, IntConsumer action) {
+            IntStream rows = IntStream.range(0, height).filter(k -> k != pivot);
+            if (height >= parallelThreshold) {
+                rows = rows.parallel();
+            }
+            rows.forEach(action);
+        }
+
+        void swapRows(int i, int k) {
+            for (int j = 0; j < width; j++) {
+                long tmp = nums[k * width + j];
+                nums[k * width + j] = nums[i * width + j];
+                nums[i * width + j] = tmp;
+            }
+            long tmp = dens[k];
+            dens[k] = dens[i];
+            dens[i] = tmp;
+            BigInteger[] tmpBigRow = bigNums[k];
+            bigNums[k] = bigNums[i];
+            bigNums[i] = tmpBigRow;
+            BigInteger tmpBig = bigDens[k];
+            bigDens[k] = bigDens[i];
+            bigDens[i] = tmpBig;
+        }
+
+        // Multiply row i by den / num of its diagonal element, to make it 1
+        void divideRowByDiagonal(int i) {
+            if (!isBig(i)) {
+                int offset = i * width;
+                long num = nums[offset + i];
+                long den = dens[i];
+                if (num == den) {
+                    return;
+                }
+                try {
+                    long[] row = buffer(width);
+                    for (int j = 0; j < width; j++) {
+                        row[j] = Math.multiplyExact(nums[offset + j], den);
+                    }
+                    dens[i] = Math.multiplyExact(den, num);
+                    System.arraycopy(row, 0, nums, offset, width);
+                    simplifyRow(i);
+                    return;
+                } catch (ArithmeticException e) {
+                    promote(i);
+                }
+            }
+            BigInteger num = bigNums[i][i];
+            BigInteger den = bigDens[i];
+            for (int j = 0; j < width; j++) {
+                bigNums[i][j] = bigNums[i][j].multiply(den);
+            }
+            bigDens[i] = den.multiply(num);
+            simplifyRow(i);
+        }
+
+        // Subtract row i multiplied by some factor from row k, so that row k has 0 in column col.
+        // Row i should have 1 in that column.
+        void eliminate(int k, int i, int col) {
+            if (bigNum(k, col).signum() == 0) {
+                return;
+            }
+            if (!isBig(k) && !isBig(i)) {
+                int rowK = k * width;
+                int rowI = i * width;
+                long num = nums[rowK + col];
+                long den = dens[i];
+                try {
+                    long[] row = buffer(width);
+                    for (int j = 0; j < width; j++) {
+                        row[j] = Math.subtractExact(
+                                Math.multiplyExact(nums[rowK + j], den),
+                                Math.multiplyExact(nums[rowI + j], num));
+                    }
+                    dens[k] = Math.multiplyExact(dens[k], den);
+                    System.arraycopy(row, 0, nums, rowK, width);
+                    simplifyRow(k);
+                    return;
+                } catch (ArithmeticException e) {
+                    // Fall back to BigInteger, row k is not modified yet
+                }
+            }
+            promote(k);
+            BigInteger num = bigNums[k][col];
+            BigInteger den = bigDen(i);
+            for (int j = 0; j < width; j++) {
+                bigNums[k][j] = bigNums[k][j].multiply(den).subtract(bigNum(i, j).multiply(num));
+            }
+            bigDens[k] = bigDens[k].multiply(den);
+            simplifyRow(k);
+        }
+
         Mat multiply(Mat that) {
             Mat res = new Mat(this.height(), that.width());
             for (int i = 0; i < res.height(); i++) {
-                for (int j = 0; j < res.width(); j++) {
-                    for (int k = 0; k < this.width(); k++) {
-                        long num = this.nums[i][k] * that.nums[k][j];
-                        long den = this.dens[i] * that.dens[k];
-                        res.addValue(i, j, num, den);
-                    }
+                try {
+                    multiplyLongRow(that, i, res);
+                } catch (ArithmeticException e) {
+                    multiplyBigRow(that, i, res);
                 }
                 res.simplifyRow(i);
             }
             return res;
         }
 
+        // res[i] = this[i] * that, going through rows of that in order, which are contiguous in memory.
+        // Rows of that are brought to common denominator first.
+        private void multiplyLongRow(Mat that, int i, Mat res) {
+            if (this.isBig(i)) {
+                throw new ArithmeticException("Big row");
+            }
+            int offset = i * this.width;
+            long lcm = 1;
+            for (int k = 0; k < this.width; k++) {
+                if (this.nums[offset + k] != 0) {
+                    if (that.isBig(k)) {
+                        throw new ArithmeticException("Big row");
+                    }
+                    long den = that.dens[k];
+                    lcm = Math.multiplyExact(lcm / absGcd(lcm, den), den);
+                }
+            }
+            long[] row = buffer(res.width);
+            Arrays.fill(row, 0, res.width, 0);
+            for (int k = 0; k < this.width; k++) {
+                long num = this.nums[offset + k];
+                if (num == 0) {
+                    continue;
+                }
+                num = Math.multiplyExact(num, lcm / that.dens[k]);
+                int thatOffset = k * that.width;
+                for (int j = 0; j < res.width; j++) {
+                    row[j] = Math.addExact(row[j], Math.multiplyExact(num, that.nums[thatOffset + j]));
+                }
+            }
+            res.dens[i] = Math.multiplyExact(this.dens[i], lcm);
+            System.arraycopy(row, 0, res.nums, i * res.width, res.width);
+        }
+
+        // res[i] = this[i] * that, all rows of that are brought to common denominator first
+        private void multiplyBigRow(Mat that, int i, Mat res) {
+            BigInteger lcm = BigInteger.ONE;
+            for (int k = 0; k < this.width(); k++) {
+                if (this.bigNum(i, k).signum() != 0) {
+                    BigInteger den = that.bigDen(k);
+                    lcm = lcm.divide(lcm.gcd(den)).multiply(den);
+                }
+            }
+            BigInteger[] row = new BigInteger[res.width()];
+            Arrays.fill(row, BigInteger.ZERO);
+            for (int k = 0; k < this.width(); k++) {
+                BigInteger num = this.bigNum(i, k);
+                if (num.signum() == 0) {
+                    continue;
+                }
+                num = num.multiply(lcm.divide(that.bigDen(k)));
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = row[j].add(num.multiply(that.bigNum(k, j)));
+                }
+            }
+            res.bigNums[i] = row;
+            res.bigDens[i] = this.bigDen(i).multiply(lcm);
+        }
+
         int height() {
-            return nums.length;
+            return height;
         }
 
         int width() {
-            return nums[0].length;
+            return width;
         }
 
         private Mat copy() {
-            Mat copy = new Mat(height(), width());
-            System.arraycopy(dens, 0, copy.dens, 0, height());
-            for (int i = 0; i < height(); i++) {
-                System.arraycopy(nums[i], 0, copy.nums[i], 0, width());
+            Mat copy = new Mat(height, width);
+            System.arraycopy(dens, 0, copy.dens, 0, height);
+            System.arraycopy(nums, 0, copy.nums, 0, nums.length);
+            for (int i = 0; i < height; i++) {
+                if (isBig(i)) {
+                    copy.bigNums[i] = bigNums[i].clone();
+                    copy.bigDens[i] = bigDens[i];
+                }
             }
             return copy;
         }
@@ -261,9 +1739,9 @@ public class Solution {
                 sb.append('[');
                 for (int j = 0; j < width(); j++) {
                     sb.append(' ');
-                    sb.append(nums[i][j]);
+                    sb.append(bigNum(i, j));
                     sb.append('/');
-                    sb.append(dens[i]);
+                    sb.append(bigDen(i));
                     sb.append(',');
                 }
                 sb.setLength(sb.length() - 1);
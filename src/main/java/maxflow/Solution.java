@@ -1,181 +1,1318 @@
 package maxflow;
 
-import java.util.ArrayList;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Set;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
-import static java.util.Comparator.comparing;
-import static java.util.stream.Collectors.toSet;
+import static java.nio.file.StandardOpenOption.READ;
 
 public class Solution {
     // This is Max Flow problem: https://en.wikipedia.org/wiki/Maximum_flow_problem
-    // Going to use push-rebalance algorithm to solve it
+    // Algorithm is picked by the shape of the graph, see MaxFlowEngine.select
     public static int solution(int[] entrances, int[] exits, int[][] path) {
+        return solution(entrances, exits, path, MaxFlowEngine.AUTO);
+    }
+
+    public static int solution(int[] entrances, int[] exits, int[][] path, MaxFlowEngine engine) {
         // We will use only one source and one target
-        int source = entrances[0];
-        int target = exits[0];
-        Graph g = new Graph(source, target, path.length);
-        Set<Integer> sourceSet = Arrays.stream(entrances).boxed().collect(toSet());
-        Set<Integer> targetSet = Arrays.stream(exits).boxed().collect(toSet());
-        for (int from = 0; from < path.length; from++) {
-            int[] caps = path[from];
-            for (int to = 0; to < caps.length; to++) {
-                int cap = caps[to];
-                // Ignore empty edges and self-loops
-                if (cap == 0 || from == to) {
-                    continue;
+        return Graph.build(path, mask(entrances, path.length), mask(exits, path.length), entrances[0], exits[0])
+                .solve(engine);
+    }
+
+    // Same for the sparse network with n vertices given as a list of edges from[k] -> to[k] with capacities cap[k]
+    public static int solution(int[] entrances, int[] exits, int n, int[] from, int[] to, int[] cap) {
+        return solution(entrances, exits, n, from, to, cap, MaxFlowEngine.AUTO);
+    }
+
+    public static int solution(int[] entrances, int[] exits, int n, int[] from, int[] to, int[] cap,
+                               MaxFlowEngine engine) {
+        if (from.length != to.length || from.length != cap.length) {
+            throw new IllegalArgumentException("Lengths " + from.length + ", " + to.length + ", " + cap.length);
+        }
+        for (int k = 0; k < from.length; k++) {
+            if (from[k] < 0 || from[k] >= n || to[k] < 0 || to[k] >= n) {
+                int v = from[k] < 0 || from[k] >= n ? from[k] : to[k];
+                throw new IllegalArgumentException("Vertex " + v + " out of range at edge " + k);
+            }
+            if (cap[k] < 0) {
+                throw new IllegalArgumentException("Capacity " + cap[k] + " at edge " + k);
+            }
+        }
+        Graph.Builder builder = new Graph.Builder(n, from.length, mask(entrances, n), mask(exits, n),
+                entrances[0], exits[0]);
+        for (int k = 0; k < from.length; k++) {
+            builder.add(from[k], to[k], cap[k]);
+        }
+        return builder.build().solve(engine);
+    }
+
+    // Same for the network in the file, see Graph.read for formats
+    public static int solution(Path file) throws IOException {
+        return solution(file, MaxFlowEngine.AUTO);
+    }
+
+    public static int solution(Path file, MaxFlowEngine engine) throws IOException {
+        return Graph.read(file).solve(engine);
+    }
+
+    private static boolean[] mask(int[] vertices, int n) {
+        boolean[] mask = new boolean[n];
+        for (int v : vertices) {
+            mask[v] = true;
+        }
+        return mask;
+    }
+
+    // Max flow which is solved again after changes of capacities. Residual graph and preflow of the previous solution
+    // are kept. When capacity becomes less than the flow on the edge, the surplus is returned to the start of the edge,
+    // and the deficit at its end is repaired by cancelling flow on paths to vertices with excess (or the target).
+    // Then push-relabel continues from this preflow with fresh heights, instead of starting from zero flow.
+    public static class IncrementalFlow {
+        private final int[][] path;
+        private final boolean[] sources;
+        private final boolean[] targets;
+        private final Graph graph;
+        // Capacities of the edges, flow on edge e is capacity[e] - graph.cap[e]
+        private int[] capacity;
+        private final int[] excess;
+        private boolean solved;
+        // Parent edges of vertices for the search of the path to cancel, and its queue
+        private final int[] parents;
+        private final int[] queue;
+
+        public IncrementalFlow(int[] entrances, int[] exits, int[][] path) {
+            int n = path.length;
+            this.path = new int[n][];
+            for (int i = 0; i < n; i++) {
+                this.path[i] = path[i].clone();
+            }
+            this.sources = mask(entrances, n);
+            this.targets = mask(exits, n);
+            this.graph = Graph.build(path, sources, targets, entrances[0], exits[0]);
+            this.capacity = Arrays.copyOf(graph.cap, graph.cap.length);
+            this.excess = new int[n];
+            this.parents = new int[n];
+            this.queue = new int[n];
+        }
+
+        // Same result as solution(entrances, exits, path) for the current capacities
+        public int solution() {
+            if (!solved) {
+                new PushRelabel(graph, excess).solve();
+                solved = true;
+            }
+            return excess[graph.target];
+        }
+
+        // Set capacity of the corridor from u to v, edges are merged the same way as in Graph.build
+        public void setCapacity(int u, int v, int cap) {
+            int delta = cap - path[u][v];
+            path[u][v] = cap;
+            if (delta == 0 || targets[u] || sources[v] || u == v) {
+                return;
+            }
+            int a = sources[u] ? graph.source : u;
+            int b = targets[v] ? graph.target : v;
+            int e = graph.link(a, b, delta);
+            if (capacity.length < graph.cap.length) {
+                capacity = Arrays.copyOf(capacity, graph.cap.length);
+            }
+            capacity[e] += delta;
+            if (graph.cap[e] < 0) {
+                // Flow is more than the new capacity, return the surplus
+                int surplus = -graph.cap[e];
+                graph.cap[e] = 0;
+                graph.cap[e ^ 1] -= surplus;
+                excess[a] += surplus;
+                excess[b] -= surplus;
+                if (b != graph.source) {
+                    repair(b);
                 }
-                // Ignore all inputs of the sources and all outputs of the targets
-                if (sourceSet.contains(to) || targetSet.contains(from)) {
-                    continue;
+            }
+            solved = false;
+        }
+
+        // Repair negative excess of the vertex, i.e. it sends out more flow than it receives. Flow is followed
+        // forward from the vertex along edges which carry flow, to a vertex with positive excess (or the target),
+        // and cancelled on that path, so the vertex sends less, and the end of the path receives less.
+        // Such end exists: no flow leaves the set of vertices reachable this way, so their total excess is not
+        // negative, while excess of this vertex is negative.
+        private void repair(int vert) {
+            int[] cap = graph.cap;
+            while (excess[vert] < 0) {
+                Arrays.fill(parents, -1);
+                queue[0] = vert;
+                int found = 1;
+                int end = -1;
+                for (int visited = 0; visited < found && end == -1; visited++) {
+                    int v = queue[visited];
+                    for (int e = graph.head[v]; e != -1; e = graph.next[e]) {
+                        int u = graph.to[e];
+                        if (capacity[e] > cap[e] && parents[u] == -1 && u != vert) {
+                            parents[u] = e;
+                            queue[found++] = u;
+                            if (excess[u] > 0 && u != graph.source) {
+                                end = u;
+                                break;
+                            }
+                        }
+                    }
                 }
-                // Create link with given capacity, or increase capacity of existing link
-                g.link(
-                    sourceSet.contains(from) ? source : from,
-                    targetSet.contains(to) ? target : to,
-                    cap);
+                int amount = Math.min(-excess[vert], excess[end]);
+                for (int v = end; v != vert; v = graph.to[parents[v] ^ 1]) {
+                    amount = Math.min(amount, capacity[parents[v]] - cap[parents[v]]);
+                }
+                for (int v = end; v != vert; v = graph.to[parents[v] ^ 1]) {
+                    cap[parents[v]] += amount;
+                    cap[parents[v] ^ 1] -= amount;
+                }
+                excess[vert] += amount;
+                excess[end] -= amount;
+            }
+        }
+    }
+
+    // Max flow algorithm. It changes capacities of the graph to residual capacities.
+    // Callers outside of the package pick one of the constants, the engines themselves live in this package.
+    public interface MaxFlowEngine {
+        MaxFlowEngine PUSH_RELABEL = g -> new PushRelabel(g).solve();
+        MaxFlowEngine PARALLEL_PUSH_RELABEL = g -> new ParallelPushRelabel(g).solve();
+        MaxFlowEngine DINIC = g -> new Dinic(g).solve();
+        MaxFlowEngine BOYKOV_KOLMOGOROV = g -> new BoykovKolmogorov(g).solve();
+        MaxFlowEngine AUTO = g -> select(g).maxFlow(g);
+
+        // Graph with at most this many edges per vertex is sparse
+        int SPARSE_DEGREE = 4;
+
+        int maxFlow(Graph g);
+
+        // Boykov-Kolmogorov is the fastest one when most vertices are linked to the source or the target
+        // (as in image segmentation), so paths are short, and search trees are reused between augmentations.
+        // Dinic is O(m * sqrt(n)) for unit capacities, and it is the fastest one on sparse unit networks with
+        // long paths, like grids. Push-relabel is the best in other cases, especially on dense graphs.
+        static MaxFlowEngine select(Graph g) {
+            int n = g.size();
+            int m = g.edgeCount / 2;
+            int terminalEdges = 0;
+            for (int e = g.head[g.source]; e != -1; e = g.next[e]) {
+                terminalEdges++;
             }
+            for (int e = g.head[g.target]; e != -1; e = g.next[e]) {
+                terminalEdges++;
+            }
+            boolean sparse = m <= SPARSE_DEGREE * n;
+            if (sparse && terminalEdges >= n / 2) {
+                return BOYKOV_KOLMOGOROV;
+            }
+            int maxCap = 0;
+            for (int e = 0; e < g.edgeCount; e++) {
+                maxCap = Math.max(maxCap, g.cap[e]);
+            }
+            if (sparse && maxCap <= 1) {
+                return DINIC;
+            }
+            return PUSH_RELABEL;
         }
-        return g.solve();
     }
 
     static class Graph {
         // Indices of source and target vertices
         final int source;
         final int target;
+        // Edges are stored in arrays as linked lists per vertex (forward star): first edge of vertex v is head[v],
+        // next one is next[head[v]], and so on until -1. Edges are added in pairs, e ^ 1 is reverse edge of e.
+        final int[] head;
+        int[] next;
+        int[] to;
+        // Residual capacity of each edge
+        int[] cap;
+        int edgeCount;
+
+        Graph(int source, int target, int size) {
+            this(source, target, size, 16);
+        }
+
+        Graph(int source, int target, int size, int edges) {
+            this.source = source;
+            this.target = target;
+            this.head = new int[size];
+            Arrays.fill(head, -1);
+            this.next = new int[Math.max(edges, 2)];
+            this.to = new int[next.length];
+            this.cap = new int[next.length];
+        }
+
+        // Graph for the capacity matrix in O(n^2). Sources are merged into source, and targets are merged into target,
+        // inputs of the sources and outputs of the targets are ignored. Edges between the same vertices are merged:
+        // u -> v and v -> u share a pair of edges, and edges from sources (to targets) are summed up per vertex.
+        static Graph build(int[][] path, boolean[] sources, boolean[] targets, int source, int target) {
+            int n = path.length;
+            int edges = 0;
+            for (int[] caps : path) {
+                for (int c : caps) {
+                    if (c != 0) {
+                        edges++;
+                    }
+                }
+            }
+            Builder builder = new Builder(n, edges, sources, targets, source, target);
+            Graph g = builder.graph;
+            for (int u = 0; u < n; u++) {
+                if (targets[u]) {
+                    continue;
+                }
+                int[] caps = path[u];
+                for (int v = 0; v < n; v++) {
+                    int c = caps[v];
+                    // Ignore empty edges, self-loops and inputs of the sources
+                    if (c == 0 || u == v || sources[v]) {
+                        continue;
+                    }
+                    if (sources[u] || targets[v]) {
+                        builder.add(u, v, c);
+                    } else if (u < v) {
+                        g.addEdge(u, v, c, path[v][u]);
+                    } else if (path[v][u] == 0) {
+                        // Otherwise it is added together with v -> u
+                        g.addEdge(u, v, c, 0);
+                    }
+                }
+            }
+            return builder.build();
+        }
+
+        // Graph for the network in the file, read through memory mapping straight into the edge arrays.
+        // Two formats are supported, both with one or more sources and targets, and the first ones are used:
+        // - DIMACS max flow text format: "p max n m" line, then "n v s" lines for sources, "n v t" lines for targets,
+        //   and "a u v c" lines for edges, vertices are numbered from 1, lines starting with "c" are comments.
+        // - Binary format: BINARY_MAGIC, n, m, number of sources, sources, number of targets, targets,
+        //   then m edges as (u, v, c), vertices are numbered from 0, all values are big-endian ints.
+        // Malformed files, e.g. with vertices out of range, throw IOException with the position in the file.
+        static Graph read(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, READ)) {
+                MappedInput in = new MappedInput(channel);
+                return in.startsWith(BINARY_MAGIC) ? readBinary(in) : readDimacs(in);
+            }
+        }
+
+        // "MXF1"
+        static final int BINARY_MAGIC = 0x4d584631;
+
+        private static Graph readBinary(MappedInput in) throws IOException {
+            in.readInt();
+            int n = in.readInt();
+            if (n < 1) {
+                throw new IOException("Number of vertices " + n + " at " + in.position());
+            }
+            int m = in.readInt();
+            // Each edge takes 12 bytes
+            if (m < 0 || m > in.remaining() / 12) {
+                throw new IOException("Number of edges " + m + " at " + in.position());
+            }
+            int[] entrances = readVertices(in, n);
+            int[] exits = readVertices(in, n);
+            Builder builder = new Builder(n, m, mask(entrances, n), mask(exits, n), entrances[0], exits[0]);
+            for (int k = 0; k < m; k++) {
+                int u = vertex(in, in.readInt(), n);
+                int v = vertex(in, in.readInt(), n);
+                int c = in.readInt();
+                if (c < 0) {
+                    throw new IOException("Capacity " + c + " at " + in.position());
+                }
+                builder.add(u, v, c);
+            }
+            return builder.build();
+        }
+
+        // Count followed by the vertices, at least one
+        private static int[] readVertices(MappedInput in, int n) throws IOException {
+            int count = in.readInt();
+            if (count < 1 || count > n) {
+                throw new IOException("Number of sources or targets " + count + " at " + in.position());
+            }
+            int[] vertices = new int[count];
+            for (int k = 0; k < count; k++) {
+                vertices[k] = vertex(in, in.readInt(), n);
+            }
+            return vertices;
+        }
+
+        private static int vertex(MappedInput in, int v, int n) throws IOException {
+            if (v < 0 || v >= n) {
+                throw new IOException("Vertex " + v + " out of range at " + in.position());
+            }
+            return v;
+        }
+
+        private static Graph readDimacs(MappedInput in) throws IOException {
+            int n = 0;
+            int m = 0;
+            boolean[] sources = null;
+            boolean[] targets = null;
+            int source = -1;
+            int target = -1;
+            // Created on the first edge, when all sources and targets are known
+            Builder builder = null;
+            for (int type = in.nextChar(); type != -1; type = in.nextChar()) {
+                if (type == 'c') {
+                    in.skipLine();
+                } else if (type == 'p') {
+                    // Problem type, "max"
+                    in.skipWord();
+                    n = in.parseInt();
+                    if (n < 1) {
+                        throw new IOException("Number of vertices " + n + " at " + in.position());
+                    }
+                    m = in.parseInt();
+                    sources = new boolean[n];
+                    targets = new boolean[n];
+                } else if (type == 'n' && builder == null && sources != null) {
+                    int v = vertex(in, in.parseInt() - 1, n);
+                    int kind = in.nextChar();
+                    if (kind == 's') {
+                        sources[v] = true;
+                        source = source == -1 ? v : source;
+                    } else if (kind == 't') {
+                        targets[v] = true;
+                        target = target == -1 ? v : target;
+                    } else {
+                        throw new IOException("Unknown vertex type " + (char) kind);
+                    }
+                } else if (type == 'a' && source != -1 && target != -1) {
+                    if (builder == null) {
+                        // Number of edges is only a hint for the size of the arrays, each edge line takes
+                        // at least 8 bytes
+                        builder = new Builder(n, (int) Math.min(m, in.remaining() / 8 + 1), sources, targets,
+                                source, target);
+                    }
+                    int u = vertex(in, in.parseInt() - 1, n);
+                    int v = vertex(in, in.parseInt() - 1, n);
+                    builder.add(u, v, in.parseInt());
+                } else {
+                    throw new IOException("Unexpected line " + (char) type + " at " + in.position());
+                }
+            }
+            if (source == -1 || target == -1) {
+                throw new IOException("No source or target");
+            }
+            return builder != null ? builder.build() : new Builder(n, 0, sources, targets, source, target).build();
+        }
+
+        // Add edge a -> b and reverse edge b -> a with given capacities
+        void addEdge(int a, int b, int capAB, int capBA) {
+            if (edgeCount + 2 > next.length) {
+                int length = next.length * 2;
+                next = Arrays.copyOf(next, length);
+                to = Arrays.copyOf(to, length);
+                cap = Arrays.copyOf(cap, length);
+            }
+            int e = edgeCount;
+            edgeCount += 2;
+            to[e] = b;
+            cap[e] = capAB;
+            next[e] = head[a];
+            head[a] = e;
+            to[e + 1] = a;
+            cap[e + 1] = capBA;
+            next[e + 1] = head[b];
+            head[b] = e + 1;
+        }
+
+        // Create link with given capacity, or change capacity of existing link. Returns the edge.
+        int link(int a, int b, int cap) {
+            for (int e = head[a]; e != -1; e = next[e]) {
+                if (to[e] == b) {
+                    this.cap[e] += cap;
+                    return e;
+                }
+            }
+            addEdge(a, b, cap, 0);
+            return edgeCount - 2;
+        }
+
+        int size() {
+            return head.length;
+        }
+
+        int solve() {
+            return solve(MaxFlowEngine.AUTO);
+        }
+
+        // Max flow from source to target. Capacities of the graph become residual capacities.
+        int solve(MaxFlowEngine engine) {
+            return engine.maxFlow(this);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int e = 0; e < edgeCount; e += 2) {
+                sb.append(to[e + 1]).append(" <==").append(cap[e + 1]).append("===").append(cap[e])
+                        .append("==> ").append(to[e]).append('\n');
+            }
+            return sb.toString();
+        }
+
+        // Adds edges of the input one by one. Sources are merged into source, and targets are merged into target,
+        // inputs of the sources and outputs of the targets are ignored, edges from sources (to targets) are summed up
+        // per vertex. Other edges get own pairs, even if they are parallel or opposite.
+        static class Builder {
+            final Graph graph;
+            final boolean[] sources;
+            final boolean[] targets;
+            final int[] fromSource;
+            final int[] toTarget;
+
+            Builder(int n, int edges, boolean[] sources, boolean[] targets, int source, int target) {
+                this.graph = new Graph(source, target, n, 2 * edges);
+                this.sources = sources;
+                this.targets = targets;
+                this.fromSource = new int[n];
+                this.toTarget = new int[n];
+            }
+
+            void add(int u, int v, int c) {
+                if (c == 0 || u == v || sources[v] || targets[u]) {
+                    return;
+                }
+                if (sources[u]) {
+                    fromSource[v] += c;
+                } else if (targets[v]) {
+                    toTarget[u] += c;
+                } else {
+                    graph.addEdge(u, v, c, 0);
+                }
+            }
+
+            Graph build() {
+                for (int v = 0; v < fromSource.length; v++) {
+                    if (fromSource[v] != 0) {
+                        graph.addEdge(graph.source, targets[v] ? graph.target : v, fromSource[v], 0);
+                    }
+                    if (toTarget[v] != 0) {
+                        graph.addEdge(v, graph.target, toTarget[v], 0);
+                    }
+                }
+                return graph;
+            }
+        }
+    }
+
+    // Reads the file through memory-mapped windows, so the file is not copied into the heap, and files bigger than
+    // 2 GB can be read too
+    static class MappedInput {
+        // Size of the mapped part of the file
+        static volatile int windowSize = 1 << 26;
+
+        private final FileChannel channel;
+        private final long size;
+        // Offset of the window in the file
+        private long offset;
+        private MappedByteBuffer window;
+
+        MappedInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0);
+        }
+
+        private void map(long offset) throws IOException {
+            this.offset = offset;
+            this.window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(windowSize, size - offset));
+        }
+
+        long position() {
+            return offset + window.position();
+        }
+
+        long remaining() {
+            return size - position();
+        }
+
+        boolean startsWith(int value) {
+            return window.remaining() >= 4 && window.getInt(0) == value;
+        }
+
+        // Next byte, or -1 at the end of the file
+        int read() throws IOException {
+            if (!window.hasRemaining()) {
+                long end = offset + window.limit();
+                if (end == size) {
+                    return -1;
+                }
+                map(end);
+            }
+            return window.get() & 0xff;
+        }
+
+        int readInt() throws IOException {
+            if (window.remaining() >= 4) {
+                return window.getInt();
+            }
+            // Int is split between windows
+            int value = 0;
+            for (int k = 0; k < 4; k++) {
+                int b = read();
+                if (b == -1) {
+                    throw new EOFException();
+                }
+                value = value << 8 | b;
+            }
+            return value;
+        }
+
+        // Next character which is not a whitespace, or -1 at the end of the file
+        int nextChar() throws IOException {
+            int c = read();
+            while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                c = read();
+            }
+            return c;
+        }
+
+        // Non-negative number in text, whitespaces before it are skipped, one character after it is consumed
+        int parseInt() throws IOException {
+            int c = nextChar();
+            if (c < '0' || c > '9') {
+                throw new IOException("Number expected at " + position());
+            }
+            long value = 0;
+            for (; c >= '0' && c <= '9'; c = read()) {
+                value = value * 10 + c - '0';
+                if (value > Integer.MAX_VALUE) {
+                    throw new IOException("Number is too big at " + position());
+                }
+            }
+            return (int) value;
+        }
+
+        void skipWord() throws IOException {
+            int c = nextChar();
+            while (c != -1 && c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                c = read();
+            }
+        }
+
+        void skipLine() throws IOException {
+            int c = read();
+            while (c != -1 && c != '\n') {
+                c = read();
+            }
+        }
+    }
+
+    // https://en.wikipedia.org/wiki/Push%E2%80%93relabel_maximum_flow_algorithm
+    // Highest label variant with gap and global relabeling heuristics, as described in
+    // "On Implementing Push-Relabel Method for the Maximum Flow Problem" by Cherkassky and Goldberg.
+    // Only the first phase is done: vertices with height >= n can't reach the target, so their excess
+    // can only go back to the source, and it doesn't change the value of the max flow.
+    // So in the end we have max preflow, and excess of the target is the max flow.
+    static class PushRelabel {
+        final int source;
+        final int target;
+        final int[] head;
+        final int[] next;
+        final int[] to;
+        final int[] cap;
+        final int edgeCount;
         // Vertices heights
         final int[] heights;
         // Vertices excess flow
         final int[] excess;
-        // Heap of vertices with excess flow
-        final PriorityQueue<Integer> excessVerts;
-        // List of bidirectional edges per vertex
-        // BiEdge stores capacity for both directions
-        final List<BiEdge>[] edges;
+        // Current edge of each vertex: edges before it are known to be not admissible until the vertex is relabeled
+        final int[] current;
+        // Active vertices (with excess flow) by height, as stacks: first vertex with height h is activeFirst[h],
+        // next one is activeNext[v], and so on until -1
+        final int[] activeFirst;
+        final int[] activeNext;
+        // All vertices by height, as doubly linked lists, to find gaps and vertices above them
+        final int[] allFirst;
+        final int[] allNext;
+        final int[] allPrev;
+        // Highest heights with non-empty lists of active and all vertices
+        int maxActive;
+        int maxHeight;
+        // Amount of work since the last global relabel
+        long work;
 
-        @SuppressWarnings("unchecked")
-        Graph(int source, int target, int size) {
-            this.source = source;
-            this.target = target;
+        // Relabel is counted as this much work plus number of edges of the vertex
+        static final int BETA = 12;
+        // Global relabel is done when amount of work exceeds GLOBAL_RELABEL_FACTOR * (ALPHA * n + m)
+        static final int ALPHA = 6;
+        static final int GLOBAL_RELABEL_FACTOR = 2;
+
+        PushRelabel(Graph g) {
+            this(g, new int[g.size()]);
+        }
+
+        // Continue from the preflow with given excess, it must be non-negative for all vertices except the source
+        PushRelabel(Graph g, int[] excess) {
+            int size = g.size();
+            this.source = g.source;
+            this.target = g.target;
+            this.head = g.head;
+            this.next = g.next;
+            this.to = g.to;
+            this.cap = g.cap;
+            this.edgeCount = g.edgeCount;
             this.heights = new int[size];
-            this.excess = new int[size];
-            // We would process vertex with max height on each iteration, using custom comparator for this.
-            // We are allowed to change heights[i] only after removing element from the heap.
-            this.excessVerts = new PriorityQueue<>(comparing(i -> -heights[i]));
-            this.edges = Stream.generate(ArrayList::new).limit(size).toArray(List[]::new);
-        }
-
-        void link(int a, int b, int cap) {
-            Edge existing = availableEdges(a)
-                    .filter(e -> e.to() == b)
-                    .findFirst()
-                    .orElse(null);
-            if (existing == null) {
-                BiEdge be = new BiEdge(a, b, cap);
-                edges[a].add(be);
-                edges[b].add(be);
-                return;
-            }
-            BiEdge be = existing.be;
-            be.caps[existing.fromIdx] += cap;
+            this.excess = excess;
+            this.current = new int[size];
+            this.activeFirst = new int[size + 1];
+            this.activeNext = new int[size];
+            this.allFirst = new int[size + 1];
+            this.allNext = new int[size];
+            this.allPrev = new int[size];
         }
 
-        // https://en.wikipedia.org/wiki/Push%E2%80%93relabel_maximum_flow_algorithm
         int solve() {
-            // Init: set height for source and saturate all of its edges
-            heights[source] = heights.length;
-            availableEdges(source).forEach(e -> e.push(e.cap()));
-
-            // Repeat until no vertices have excess flow
-            while (!excessVerts.isEmpty()) {
-                // Take highest vertex with excess flow
-                int vert = excessVerts.poll();
-                // Pick its edge pointing to lowest vertex
-                Edge lowest = availableEdges(vert)
-                        .min(comparing((Edge e) -> heights[e.to()]))
-                        .orElseThrow(RuntimeException::new);
-                // Relabel if required: increase height of current vertex
-                if (heights[vert] <= heights[lowest.to()]) {
-                    heights[vert] = heights[lowest.to()] + 1;
-                }
-                // Push excess flow downstream
-                int delta = Math.min(excess[vert], lowest.cap());
-                lowest.push(delta);
-                // Re-add current vertex if excess flow is more than residual capacity
-                if (excess[vert] > 0) {
-                    excessVerts.add(vert);
+            int n = heights.length;
+            // Init: saturate all edges of the source
+            for (int e = head[source]; e != -1; e = next[e]) {
+                push(source, e, cap[e]);
+            }
+            globalRelabel();
+
+            // Repeat until no vertices below n have excess flow, taking the highest one each time
+            while (maxActive >= 0) {
+                int vert = activeFirst[maxActive];
+                if (vert == -1) {
+                    maxActive--;
+                    continue;
+                }
+                activeFirst[maxActive] = activeNext[vert];
+                discharge(vert);
+                if (work > GLOBAL_RELABEL_FACTOR * ((long) ALPHA * n + edgeCount / 2)) {
+                    globalRelabel();
                 }
             }
             // Excess flow on target node is our answer
             return excess[target];
         }
 
-        Stream<Edge> availableEdges(int from) {
-            return edges[from].stream()
-                    .map(be -> new Edge(be, from))
-                    .filter(e -> e.cap() > 0);
+        // Push excess flow of the vertex to lower neighbours, relabel it when there are no such neighbours.
+        // Stops when there is no excess, or the vertex is lifted to n or above.
+        void discharge(int vert) {
+            int n = heights.length;
+            while (true) {
+                int height = heights[vert];
+                for (int e = current[vert]; e != -1; e = next[e]) {
+                    int v = to[e];
+                    if (cap[e] > 0 && heights[v] == height - 1) {
+                        if (excess[v] == 0 && v != target) {
+                            // v becomes active
+                            activeNext[v] = activeFirst[height - 1];
+                            activeFirst[height - 1] = v;
+                        }
+                        push(vert, e, Math.min(excess[vert], cap[e]));
+                        if (excess[vert] == 0) {
+                            current[vert] = e;
+                            return;
+                        }
+                    }
+                }
+                // All edges are not admissible, increase the height
+                removeFromAll(vert);
+                if (allFirst[height] == -1) {
+                    // Gap: no vertices at this height, so vertices above it can't reach the target anymore
+                    gap(height);
+                    heights[vert] = n;
+                    return;
+                }
+                relabel(vert);
+                if (heights[vert] >= n) {
+                    return;
+                }
+                addToAll(vert);
+                maxActive = heights[vert];
+            }
         }
 
-        // Convenience wrapper for BiEdge, from one of its vertices point of view
-        class Edge {
-            final BiEdge be;
-            final int fromIdx;
-            Edge(BiEdge be, int from) {
-                this.be = be;
-                this.fromIdx = be.verts[0] == from ? 0 : 1;
+        // Increase height of the vertex to be right above its lowest neighbour with residual capacity
+        void relabel(int vert) {
+            int height = 2 * heights.length;
+            int edge = -1;
+            for (int e = head[vert]; e != -1; e = next[e]) {
+                if (cap[e] > 0 && heights[to[e]] < height) {
+                    height = heights[to[e]];
+                    edge = e;
+                }
+                work++;
             }
+            work += BETA;
+            heights[vert] = height + 1;
+            current[vert] = edge;
+        }
+
+        // Lift all vertices above the height to n
+        void gap(int height) {
+            int n = heights.length;
+            for (int h = height + 1; h <= maxHeight; h++) {
+                for (int v = allFirst[h]; v != -1; v = allNext[v]) {
+                    heights[v] = n;
+                }
+                allFirst[h] = -1;
+            }
+            maxHeight = height - 1;
+        }
+
+        // Set heights to distances to the target in the residual graph, found by BFS from the target
+        // over reverse edges. Vertices which can't reach the target get height n.
+        void globalRelabel() {
+            int n = heights.length;
+            work = 0;
+            Arrays.fill(heights, n);
+            Arrays.fill(activeFirst, -1);
+            Arrays.fill(allFirst, -1);
+            maxActive = -1;
+            maxHeight = -1;
+            // Vertices which were found but not visited yet are in queue[visited..found)
+            int[] queue = activeNext;
+            heights[target] = 0;
+            queue[0] = target;
+            int found = 1;
+            for (int visited = 0; visited < found; visited++) {
+                int v = queue[visited];
+                for (int e = head[v]; e != -1; e = next[e]) {
+                    int u = to[e];
+                    if (cap[e ^ 1] > 0 && heights[u] == n && u != source) {
+                        heights[u] = heights[v] + 1;
+                        queue[found++] = u;
+                    }
+                }
+            }
+            // Queue is stored in activeNext, which is reused below
+            for (int k = found - 1; k > 0; k--) {
+                int v = queue[k];
+                current[v] = head[v];
+                addToAll(v);
+            }
+            for (int v = 0; v < n; v++) {
+                current[v] = head[v];
+                if (excess[v] > 0 && heights[v] < n && v != target) {
+                    activeNext[v] = activeFirst[heights[v]];
+                    activeFirst[heights[v]] = v;
+                    maxActive = Math.max(maxActive, heights[v]);
+                }
+            }
+        }
+
+        private void addToAll(int v) {
+            int h = heights[v];
+            allPrev[v] = -1;
+            allNext[v] = allFirst[h];
+            if (allFirst[h] != -1) {
+                allPrev[allFirst[h]] = v;
+            }
+            allFirst[h] = v;
+            maxHeight = Math.max(maxHeight, h);
+        }
+
+        private void removeFromAll(int v) {
+            int h = heights[v];
+            if (allPrev[v] == -1) {
+                allFirst[h] = allNext[v];
+            } else {
+                allNext[allPrev[v]] = allNext[v];
+            }
+            if (allNext[v] != -1) {
+                allPrev[allNext[v]] = allPrev[v];
+            }
+        }
+
+        // Push some flow along the edge and update capacities in both directions
+        void push(int from, int e, int amount) {
+            excess[from] -= amount;
+            excess[to[e]] += amount;
+            cap[e] -= amount;
+            cap[e ^ 1] += amount;
+        }
+    }
+
+    // Push-relabel where active vertices are discharged concurrently, based on the lock-free algorithm from
+    // "A Lock-free Multi-threaded Algorithm for the Maximum Flow Problem" by Bo Hong. Capacities, excesses and heights
+    // are atomic. Only the vertex being discharged decreases its excess, its height and capacities of its edges,
+    // other threads only increase them, so values read by the owner are lower bounds and a push never overdraws.
+    // Flow is pushed to any neighbour which looks lower, as its height read might be stale, and the vertex is
+    // relabeled only if the lowest neighbour is not lower than the vertex.
+    // Work is done in rounds: all active vertices of a round are discharged in parallel, vertices which become
+    // active go to the next round. Between rounds global relabel restores exact heights, there is no gap heuristic,
+    // as it needs a consistent view of all heights. As in PushRelabel, only the first phase is done. In the end
+    // no vertex with excess can reach the target, so excess of the target is the max flow.
+    static class ParallelPushRelabel {
+        final int source;
+        final int target;
+        final int[] head;
+        final int[] next;
+        final int[] to;
+        final int edgeCount;
+        final Graph graph;
+        final AtomicIntegerArray cap;
+        final AtomicIntegerArray heights;
+        final AtomicIntegerArray excess;
+        // 1 if the vertex is in the current or the next round, so it has only one owner at a time
+        final AtomicIntegerArray queued;
+        // Current edge of each vertex, used only by its owner
+        final int[] current;
+        // Active vertices of the current and the next rounds
+        int[] active;
+        int[] nextActive;
+        int activeCount;
+        final AtomicInteger nextActiveCount = new AtomicInteger();
+        // Amount of work since the last global relabel, counted as in PushRelabel
+        final AtomicLong work = new AtomicLong();
+
+        // Rounds with at least this many active vertices are done in parallel
+        static volatile int parallelThreshold = 64;
+
+        ParallelPushRelabel(Graph g) {
+            int size = g.size();
+            this.source = g.source;
+            this.target = g.target;
+            this.head = g.head;
+            this.next = g.next;
+            this.to = g.to;
+            this.edgeCount = g.edgeCount;
+            this.graph = g;
+            this.cap = new AtomicIntegerArray(Arrays.copyOf(g.cap, g.edgeCount));
+            this.heights = new AtomicIntegerArray(size);
+            this.excess = new AtomicIntegerArray(size);
+            this.queued = new AtomicIntegerArray(size);
+            this.current = new int[size];
+            this.active = new int[size];
+            this.nextActive = new int[size];
+        }
+
+        int solve() {
+            int n = current.length;
+            long limit = PushRelabel.GLOBAL_RELABEL_FACTOR * ((long) PushRelabel.ALPHA * n + edgeCount / 2);
+            for (int e = head[source]; e != -1; e = next[e]) {
+                push(source, e, cap.get(e));
+            }
+            globalRelabel();
+            while (activeCount > 0) {
+                nextActiveCount.set(0);
+                IntStream round = IntStream.range(0, activeCount);
+                if (activeCount >= parallelThreshold) {
+                    round = round.parallel();
+                }
+                int[] vertices = active;
+                round.forEach(k -> discharge(vertices[k]));
+                active = nextActive;
+                nextActive = vertices;
+                activeCount = nextActiveCount.get();
+                // Stale heights can make labeling invalid, so the last round is always checked by global relabel
+                if (activeCount == 0 || work.get() > limit) {
+                    globalRelabel();
+                }
+            }
+            for (int e = 0; e < edgeCount; e++) {
+                graph.cap[e] = cap.get(e);
+            }
+            return excess.get(target);
+        }
 
-            // Push some flow downstream and update capacities in both directions
-            // Add downstream vertex to excessVerts if it is not already there
-            void push(int amount) {
-                if (target != to() && excess[to()] == 0) {
-                    excessVerts.add(to());
+        // Push excess flow of the vertex to lower neighbours, relabel it when there are no such neighbours.
+        // Stops when there is no excess, or the vertex is lifted to n or above.
+        void discharge(int vert) {
+            int n = current.length;
+            long done = 0;
+            int height = heights.get(vert);
+            int left = excess.get(vert);
+            while (left > 0 && height < n) {
+                int e = current[vert];
+                for (; e != -1; e = next[e]) {
+                    int c = cap.get(e);
+                    if (c > 0 && heights.get(to[e]) < height) {
+                        left = push(vert, e, Math.min(left, c));
+                        if (left == 0) {
+                            break;
+                        }
+                    }
                 }
-                excess[from()] -= amount;
-                excess[to()] += amount;
-                be.caps[fromIdx] -= amount;
-                be.caps[1 - fromIdx] += amount;
+                if (e != -1) {
+                    current[vert] = e;
+                    break;
+                }
+                // Relabel: find the lowest neighbour with residual capacity
+                int lowest = 2 * n;
+                for (e = head[vert]; e != -1; e = next[e]) {
+                    if (cap.get(e) > 0) {
+                        lowest = Math.min(lowest, heights.get(to[e]));
+                    }
+                    done++;
+                }
+                done += PushRelabel.BETA;
+                // Neighbour which read a stale height of this vertex could push flow back, then there is
+                // an admissible edge again
+                if (lowest >= height) {
+                    height = Math.min(lowest + 1, n);
+                    heights.set(vert, height);
+                }
+                current[vert] = head[vert];
+                left = excess.get(vert);
             }
+            work.addAndGet(done);
+            // Flow could come while the vertex was owned, then it goes to the next round
+            queued.set(vert, 0);
+            if (excess.get(vert) > 0) {
+                activate(vert);
+            }
+        }
 
-            // Residual capacity in given direction
-            int cap() {
-                return be.caps[fromIdx];
+        // Add vertex to the next round if it's not queued yet
+        void activate(int v) {
+            if (v != target && heights.get(v) < current.length && queued.compareAndSet(v, 0, 1)) {
+                nextActive[nextActiveCount.getAndIncrement()] = v;
             }
+        }
 
-            int from() {
-                return be.verts[fromIdx];
+        // Set heights to distances to the target in the residual graph, found by BFS from the target
+        // over reverse edges. Vertices which can't reach the target get height n. Done between rounds.
+        void globalRelabel() {
+            int n = current.length;
+            work.set(0);
+            for (int v = 0; v < n; v++) {
+                heights.set(v, n);
+            }
+            int[] queue = nextActive;
+            heights.set(target, 0);
+            queue[0] = target;
+            int found = 1;
+            for (int visited = 0; visited < found; visited++) {
+                int v = queue[visited];
+                int height = heights.get(v) + 1;
+                for (int e = head[v]; e != -1; e = next[e]) {
+                    int u = to[e];
+                    if (cap.get(e ^ 1) > 0 && heights.get(u) == n && u != source) {
+                        heights.set(u, height);
+                        queue[found++] = u;
+                    }
+                }
+            }
+            activeCount = 0;
+            for (int v = 0; v < n; v++) {
+                current[v] = head[v];
+                boolean isActive = excess.get(v) > 0 && heights.get(v) < n && v != target;
+                queued.set(v, isActive ? 1 : 0);
+                if (isActive) {
+                    active[activeCount++] = v;
+                }
             }
+        }
+
+        // Push some flow along the edge, returns excess left. Only owner of the vertex calls it.
+        int push(int from, int e, int amount) {
+            int v = to[e];
+            cap.addAndGet(e, -amount);
+            cap.addAndGet(e ^ 1, amount);
+            excess.addAndGet(v, amount);
+            activate(v);
+            return excess.addAndGet(from, -amount);
+        }
+    }
 
-            int to() {
-                return be.verts[1 - fromIdx];
+    // https://en.wikipedia.org/wiki/Dinic%27s_algorithm
+    // Levels of vertices are found by BFS from the source, and then blocking flow is found by DFS along edges
+    // which go to the next level, each edge is tried at most once per phase thanks to current edge pointers
+    static class Dinic {
+        final int source;
+        final int target;
+        final int[] head;
+        final int[] next;
+        final int[] to;
+        final int[] cap;
+        // Distances from the source in the residual graph, -1 for unreachable vertices and dead ends
+        final int[] levels;
+        // Current edge of each vertex: edges before it don't lead to the target in this phase
+        final int[] current;
+        // BFS queue, and then edges of the current path in DFS
+        final int[] queue;
+
+        Dinic(Graph g) {
+            this.source = g.source;
+            this.target = g.target;
+            this.head = g.head;
+            this.next = g.next;
+            this.to = g.to;
+            this.cap = g.cap;
+            this.levels = new int[g.size()];
+            this.current = new int[g.size()];
+            this.queue = new int[g.size()];
+        }
+
+        int solve() {
+            int flow = 0;
+            while (findLevels()) {
+                System.arraycopy(head, 0, current, 0, head.length);
+                for (int delta = augment(); delta > 0; delta = augment()) {
+                    flow += delta;
+                }
             }
+            return flow;
+        }
 
-            @Override
-            public String toString() {
-                return from() + " ===" + cap() + "==> " + to();
+        // BFS from the source, returns false if the target is not reachable
+        private boolean findLevels() {
+            Arrays.fill(levels, -1);
+            levels[source] = 0;
+            queue[0] = source;
+            int found = 1;
+            for (int visited = 0; visited < found && levels[target] == -1; visited++) {
+                int v = queue[visited];
+                for (int e = head[v]; e != -1; e = next[e]) {
+                    int u = to[e];
+                    if (cap[e] > 0 && levels[u] == -1) {
+                        levels[u] = levels[v] + 1;
+                        queue[found++] = u;
+                    }
+                }
             }
+            return levels[target] != -1;
+        }
+
+        // Find one path to the target by iterative DFS and push flow along it, returns 0 if there is no path
+        private int augment() {
+            int[] path = queue;
+            int depth = 0;
+            int v = source;
+            while (v != target) {
+                int e = current[v];
+                while (e != -1 && (cap[e] == 0 || levels[to[e]] != levels[v] + 1)) {
+                    e = next[e];
+                }
+                current[v] = e;
+                if (e != -1) {
+                    path[depth++] = e;
+                    v = to[e];
+                    continue;
+                }
+                // Dead end, go back
+                levels[v] = -1;
+                if (depth == 0) {
+                    return 0;
+                }
+                e = path[--depth];
+                v = to[e ^ 1];
+                current[v] = next[e];
+            }
+            int delta = Integer.MAX_VALUE;
+            for (int k = 0; k < depth; k++) {
+                delta = Math.min(delta, cap[path[k]]);
+            }
+            for (int k = 0; k < depth; k++) {
+                cap[path[k]] -= delta;
+                cap[path[k] ^ 1] += delta;
+            }
+            return delta;
         }
     }
 
-    // Bidirectional edge
-    static class BiEdge {
-        // Indexes of linked vertices
-        final int[] verts;
-        // Residual capacities for both directions
-        // caps[0] - capacity from vers[0] to verts[1]
-        // caps[1] - capacity from vers[1] to verts[0]
-        final int[] caps;
-        BiEdge(int a, int b, int cap) {
-            this.verts = new int[] {a, b};
-            this.caps = new int[] {cap, 0};
+    // "An Experimental Comparison of Min-Cut/Max-Flow Algorithms for Energy Minimization in Vision"
+    // by Boykov and Kolmogorov. Two search trees are grown from the source and from the target over edges
+    // with residual capacity. When they meet, flow is pushed along the path, and vertices which lost their
+    // parent edges (orphans) look for new parents in the same tree, or become free. Trees are kept between
+    // augmentations, so most of the search is not repeated.
+    static class BoykovKolmogorov {
+        static final byte FREE = 0;
+        static final byte SOURCE_TREE = 1;
+        static final byte TARGET_TREE = 2;
+        // Special values of parent edges
+        static final int TERMINAL = -1;
+        static final int ORPHAN = -2;
+
+        final int source;
+        final int target;
+        final int[] head;
+        final int[] next;
+        final int[] to;
+        final int[] cap;
+        final byte[] trees;
+        // Edge from vertex to its parent (so the tree edge of the source tree is the reverse one)
+        final int[] parents;
+        // Active vertices are on the border of their tree, they are processed in FIFO order
+        final int[] active;
+        final boolean[] isActive;
+        // Next edge to check when growing the tree from an active vertex
+        final int[] scan;
+        int activeHead;
+        int activeSize;
+        // Orphans are processed as a stack
+        final int[] orphans;
+        int orphanCount;
+        // Vertices which are known to be connected to their terminal have marks[v] == time
+        final int[] marks;
+        int time;
+
+        BoykovKolmogorov(Graph g) {
+            int n = g.size();
+            this.source = g.source;
+            this.target = g.target;
+            this.head = g.head;
+            this.next = g.next;
+            this.to = g.to;
+            this.cap = g.cap;
+            this.trees = new byte[n];
+            this.parents = new int[n];
+            this.active = new int[n];
+            this.isActive = new boolean[n];
+            this.scan = new int[n];
+            this.orphans = new int[n];
+            this.marks = new int[n];
         }
 
-        @Override
-        public String toString() {
-            return verts[0] + " <==" + caps[1] + "===" + caps[0] + "==> " + verts[1];
+        int solve() {
+            Arrays.fill(parents, ORPHAN);
+            trees[source] = SOURCE_TREE;
+            parents[source] = TERMINAL;
+            trees[target] = TARGET_TREE;
+            parents[target] = TERMINAL;
+            activate(source);
+            activate(target);
+            int flow = 0;
+            for (int edge = grow(); edge != -1; edge = grow()) {
+                time++;
+                flow += augment(edge);
+                adopt();
+            }
+            return flow;
+        }
+
+        // Vertex may have new free neighbours, so all its edges are checked again
+        private void activate(int v) {
+            scan[v] = head[v];
+            if (!isActive[v]) {
+                isActive[v] = true;
+                active[(activeHead + activeSize) % active.length] = v;
+                activeSize++;
+            }
+        }
+
+        // Residual capacity of edge e from v to to[e] in the direction of the flow in the tree of v
+        private int treeCap(byte tree, int e) {
+            return tree == SOURCE_TREE ? cap[e] : cap[e ^ 1];
+        }
+
+        // Grow trees until they meet, returns edge from the source tree to the target tree, or -1
+        private int grow() {
+            while (activeSize > 0) {
+                int p = active[activeHead];
+                byte tree = trees[p];
+                if (tree != FREE) {
+                    for (int e = scan[p]; e != -1; e = next[e]) {
+                        if (treeCap(tree, e) == 0) {
+                            continue;
+                        }
+                        int q = to[e];
+                        if (trees[q] == FREE) {
+                            trees[q] = tree;
+                            parents[q] = e ^ 1;
+                            activate(q);
+                        } else if (trees[q] != tree) {
+                            // p stays active, this edge may have more capacity after augmentation
+                            scan[p] = e;
+                            return tree == SOURCE_TREE ? e : e ^ 1;
+                        }
+                    }
+                }
+                isActive[p] = false;
+                activeHead = (activeHead + 1) % active.length;
+                activeSize--;
+            }
+            return -1;
+        }
+
+        // Push flow along the path through the edge, and collect saturated tree edges' vertices as orphans
+        private int augment(int edge) {
+            int delta = cap[edge];
+            for (int v = to[edge ^ 1]; v != source; v = to[parents[v]]) {
+                delta = Math.min(delta, cap[parents[v] ^ 1]);
+            }
+            for (int v = to[edge]; v != target; v = to[parents[v]]) {
+                delta = Math.min(delta, cap[parents[v]]);
+            }
+            cap[edge] -= delta;
+            cap[edge ^ 1] += delta;
+            for (int v = to[edge ^ 1]; v != source; ) {
+                int e = parents[v] ^ 1;
+                int parent = to[parents[v]];
+                cap[e] -= delta;
+                cap[e ^ 1] += delta;
+                if (cap[e] == 0) {
+                    parents[v] = ORPHAN;
+                    orphans[orphanCount++] = v;
+                }
+                v = parent;
+            }
+            for (int v = to[edge]; v != target; ) {
+                int e = parents[v];
+                int parent = to[e];
+                cap[e] -= delta;
+                cap[e ^ 1] += delta;
+                if (cap[e] == 0) {
+                    parents[v] = ORPHAN;
+                    orphans[orphanCount++] = v;
+                }
+                v = parent;
+            }
+            return delta;
+        }
+
+        // Find new parents for orphans, or make them free
+        private void adopt() {
+            while (orphanCount > 0) {
+                int v = orphans[--orphanCount];
+                byte tree = trees[v];
+                int parent = -1;
+                for (int e = head[v]; e != -1 && parent == -1; e = next[e]) {
+                    // Edge from the candidate parent to v should have residual capacity in the tree direction
+                    if (trees[to[e]] == tree && treeCap(tree, e ^ 1) > 0 && isRooted(to[e])) {
+                        parent = e;
+                    }
+                }
+                if (parent != -1) {
+                    parents[v] = parent;
+                    marks[v] = time;
+                    continue;
+                }
+                for (int e = head[v]; e != -1; e = next[e]) {
+                    int q = to[e];
+                    if (trees[q] != tree) {
+                        continue;
+                    }
+                    if (treeCap(tree, e ^ 1) > 0) {
+                        // q may grow into v again
+                        activate(q);
+                    }
+                    if (parents[q] >= 0 && to[parents[q]] == v) {
+                        parents[q] = ORPHAN;
+                        orphans[orphanCount++] = q;
+                    }
+                }
+                trees[v] = FREE;
+            }
+        }
+
+        // Check that the path of parents from the vertex ends at the terminal, and mark it
+        private boolean isRooted(int v) {
+            int u = v;
+            while (marks[u] != time && parents[u] != TERMINAL) {
+                if (parents[u] == ORPHAN) {
+                    return false;
+                }
+                u = to[parents[u]];
+            }
+            for (u = v; marks[u] != time && parents[u] != TERMINAL; u = to[parents[u]]) {
+                marks[u] = time;
+            }
+            return true;
         }
     }
 }
@@ -1,9 +1,29 @@
 package burnside;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static burnside.Solution.solution;
+import static burnside.Solution.solutionModulo;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class BurnsideTest {
     @Test
@@ -43,4 +63,205 @@ class BurnsideTest {
                 "00541973582287876882108834397796920913972168217148795996701228647462897847048719" +
                 "3051591840", solution(12, 12, 20));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testConcurrent() throws Exception {
+        Solution.conjugates.clear();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                int size = 6 + i % 7;
+                results.add(executor.submit(() -> solution(size, size, 20)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                int size = 6 + i % 7;
+                assertEquals(solution(size, size, 20), results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(
+                "97195340925396730736950973830781340249131679073592360856141700148734207997877978" +
+                "00541973582287876882108834397796920913972168217148795996701228647462897847048719" +
+                "3051591840", solution(12, 12, 20));
+    }
+
+    @Test
+    void testSolutions() {
+        assertArrayEquals(
+                new String[] {"1", "317", "90492", "7880456", "270656150", "4947097821", "58002778967", "490172624992"},
+                Solution.solutions(4, 4, new int[] {1, 2, 3, 4, 5, 6, 7, 8}));
+        assertArrayEquals(new String[0], Solution.solutions(3, 3, new int[0]));
+        int[] s = new int[30];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = i + 1;
+        }
+        String[] batch = Solution.solutions(7, 5, s);
+        for (int i = 0; i < s.length; i++) {
+            assertEquals(solution(7, 5, s[i]), batch[i]);
+        }
+    }
+
+    @Test
+    void testParallel() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals("7", solution(2, 2, 2, pool));
+            assertEquals("57675", solution(3, 3, 5, pool));
+            assertEquals("2625154125717590496", solution(5, 5, 8, pool));
+            for (int w = 1; w <= 20; w += 3) {
+                for (int h = 1; h <= 20; h += 4) {
+                    assertEquals(solution(w, h, 7), solution(w, h, 7, pool));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testModulo() {
+        assertEquals(7, solutionModulo(2, 2, 2, 1_000_000_007L));
+        assertEquals(490172624992L % 1_000_000_007L, solutionModulo(4, 4, 8, 1_000_000_007L));
+        assertEquals(490172624992L % 101, solutionModulo(4, 4, 8, 101));
+        assertEquals(
+                new BigInteger(solution(12, 12, 20)).mod(BigInteger.valueOf(2147483647)).longValue(),
+                solutionModulo(12, 12, 20, 2147483647L));
+        assertThrows(IllegalArgumentException.class, () -> solutionModulo(5, 5, 2, 5));
+        assertThrows(IllegalArgumentException.class, () -> solutionModulo(5, 5, 2, 1L << 40));
+        // Composite modulo
+        assertThrows(IllegalArgumentException.class, () -> solutionModulo(4, 4, 8, 1_000_000_008L));
+
+        assertEquals("7", Solution.solutionCrt(2, 2, 2));
+        assertEquals("1", Solution.solutionCrt(5, 5, 1));
+        assertEquals("2625154125717590496", Solution.solutionCrt(5, 5, 8));
+        for (int w = 1; w <= 13; w += 3) {
+            for (int h = 1; h <= 13; h += 4) {
+                assertEquals(solution(w, h, 30), Solution.solutionCrt(w, h, 30));
+            }
+        }
+    }
+
+    @Test
+    void testPartitions() {
+        // https://oeis.org/A000041
+        int[] counts = {1, 1, 2, 3, 5, 7, 11, 15, 22, 30, 42, 56, 77, 101, 135, 176, 231, 297, 385, 490, 627};
+        for (int n = 0; n < counts.length; n++) {
+            Solution.Partitions p = new Solution.Partitions(n);
+            int count = 0;
+            do {
+                int size = 0;
+                for (int i = 0; i < p.distinct; i++) {
+                    assertTrue(i == 0 || p.lens[i] < p.lens[i - 1]);
+                    assertTrue(p.mults[i] > 0);
+                    size += p.lens[i] * p.mults[i];
+                }
+                assertEquals(n, size);
+                count++;
+            } while (p.next());
+            assertEquals(counts[n], count);
+        }
+    }
+
+    @Test
+    void testFactorials() {
+        BigInteger fac = BigInteger.ONE;
+        for (int n = 0; n <= Solution.Factorials.TABLE_LIMIT + 100; n++) {
+            if (n > 0) {
+                fac = fac.multiply(BigInteger.valueOf(n));
+            }
+            if (n % 97 == 0 || n >= Solution.Factorials.TABLE_LIMIT - 1) {
+                assertEquals(fac, Solution.Factorials.get(n));
+            }
+        }
+        assertEquals(BigInteger.valueOf(7 * 8 * 9 * 10), Solution.Factorials.product(7, 10));
+        assertEquals(BigInteger.valueOf(3L * 4 * 5 * 6 * 7 * 8 * 9 * 10 * 11 * 12 * 13), Solution.Factorials.product(3, 13));
+    }
+
+    @Test
+    void testStore(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("burnside.bin");
+        try {
+            Solution.useStore(file);
+            assertEquals("57675", solution(3, 3, 5));
+            assertEquals("2625154125717590496", solution(5, 5, 8));
+            assertArrayEquals(new String[] {"1", "317", "90492"}, Solution.solutions(4, 4, new int[] {1, 2, 3}));
+
+            // Fresh store must answer from the file only
+            Solution.useStore(file);
+            assertEquals(5 * 5 + 1, Solution.store.get(Solution.Store.CYCLE_INDEX, 5, 5).length);
+            // Cyclic permutations of 5 elements: 4!
+            assertEquals(BigInteger.valueOf(24), Solution.store.get(Solution.Store.CONJUGATES, 5, 0)[0]);
+            Solution.cycleIndices.clear();
+            assertEquals("57675", solution(3, 3, 5));
+            assertEquals("4947097821", solution(4, 4, 6));
+            assertEquals("2625154125717590496", solution(5, 5, 8));
+
+            // Incomplete record at the end of the file is dropped
+            Solution.useStore(null);
+            long size = Files.size(file);
+            Files.write(file, new byte[] {1, 0, 0, 0, 7, 0, 0, 0, 7, 0, 0, 1}, StandardOpenOption.APPEND);
+            Solution.useStore(file);
+            assertEquals(size, Files.size(file));
+            Solution.cycleIndices.clear();
+            assertEquals("93242242505023122", solution(5, 5, 7));
+            assertEquals(
+                    "97195340925396730736950973830781340249131679073592360856141700148734207997877978" +
+                    "00541973582287876882108834397796920913972168217148795996701228647462897847048719" +
+                    "3051591840", solution(12, 12, 20));
+
+            // Record with negative length is dropped too
+            Solution.useStore(null);
+            size = Files.size(file);
+            Files.write(file, new byte[] {1, 0, 0, 0, 7, 0, 0, 0, 7, -1, -1, -1, -1}, StandardOpenOption.APPEND);
+            Solution.useStore(file);
+            assertEquals(size, Files.size(file));
+
+            // File of another version is started from scratch
+            Solution.useStore(null);
+            ByteBuffer header = ByteBuffer.allocate(Solution.Store.HEADER_SIZE)
+                    .putInt(Solution.Store.MAGIC).putInt(Solution.Store.VERSION + 1);
+            Files.write(file, header.array(), StandardOpenOption.WRITE);
+            Solution.useStore(file);
+            assertEquals(Solution.Store.HEADER_SIZE, Files.size(file));
+            assertNull(Solution.store.get(Solution.Store.CYCLE_INDEX, 5, 5));
+            Solution.cycleIndices.clear();
+            assertEquals("57675", solution(3, 3, 5));
+            assertTrue(Files.size(file) > Solution.Store.HEADER_SIZE);
+
+            // Other files are not touched
+            Solution.useStore(null);
+            Path other = dir.resolve("notes.txt");
+            byte[] notes = "Some notes, not a store".getBytes(StandardCharsets.US_ASCII);
+            Files.write(other, notes);
+            assertThrows(IOException.class, () -> Solution.useStore(other));
+            assertArrayEquals(notes, Files.readAllBytes(other));
+        } finally {
+            Solution.useStore(null);
+            Solution.cycleIndices.clear();
+        }
+    }
+
+    @Test
+    void testMemo() {
+        Solution.Memo<Integer, BigInteger> memo = new Solution.Memo<>(3, Long.MAX_VALUE, v -> 1);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(BigInteger.valueOf(i), memo.get(i, BigInteger::valueOf));
+        }
+        assertEquals(BigInteger.valueOf(4), memo.get(4, k -> BigInteger.ZERO));
+        assertEquals(3, memo.size());
+        assertEquals(3, memo.bytes());
+        assertEquals(1, memo.hits.sum());
+        assertEquals(5, memo.misses.sum());
+        assertEquals(2, memo.evictions.sum());
+
+        memo = new Solution.Memo<>(Integer.MAX_VALUE, 10, v -> v.longValue());
+        memo.get(4, BigInteger::valueOf);
+        memo.get(5, BigInteger::valueOf);
+        memo.get(6, BigInteger::valueOf);
+        assertEquals(1, memo.size());
+        assertTrue(memo.bytes() <= 10);
+        assertEquals(2, memo.evictions.sum());
+    }
+}
@@ -2,8 +2,16 @@ package markov;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import static markov.Solution.absGcd;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class MarkovTest {
     @Test
@@ -48,6 +56,17 @@ class MarkovTest {
                 {{1, 3}, {0, 1}, {0, 1}},
                 {{0, 1}, {3, 7}, {4, 7}}
         }, chain.absorb);
+
+        // Input is not modified
+        int[][] m = {
+            {0, 0, 0},
+            {1, 0, 2},
+            {0, 0, 0}
+        };
+        chain = Solution.AbsMarkovChain.parse(m);
+        assertMat(new int[][][] {{{0, 1}}}, chain.trans);
+        assertMat(new int[][][] {{{1, 3}, {2, 3}}}, chain.absorb);
+        assertArrayEquals(new int[][] {{0, 0, 0}, {1, 0, 2}, {0, 0, 0}}, m);
     }
 
     @Test
@@ -109,6 +128,108 @@ class MarkovTest {
             }).invert());
     }
 
+    @Test
+    void testSolve() {
+        assertMat(
+            new int[][][] {
+                {{1, 5}},
+                {{-1, 5}},
+                {{1, 5}}
+            },
+            mat(new int[][][] {
+                {{3, 1}, {0, 1}, {2, 1}},
+                {{2, 1}, {0, 1}, {-2, 1}},
+                {{0, 1}, {1, 1}, {1, 1}}
+            }).solve(Solution.Mat.unitColumn(3, 0)));
+        assertMat(
+            new int[][][] {
+                {{1, 2}, {0, 1}},
+                {{-1, 1}, {1, 1}}
+            },
+            mat(new int[][][] {
+                {{2, 1}, {0, 1}},
+                {{2, 1}, {1, 1}}
+            }).solve(mat(new int[][][] {
+                {{1, 1}, {0, 1}},
+                {{0, 1}, {1, 1}}
+            })));
+    }
+
+    @Test
+    void testSolveBareiss() {
+        assertMat(
+            new int[][][] {
+               {{1, 5}, {1, 5}, {0, 1}},
+               {{-1, 5}, {3, 10}, {1, 1}},
+               {{1, 5}, {-3, 10}, {0, 1}}
+            },
+            mat(new int[][][] {
+                {{3, 1}, {0, 1}, {2, 1}},
+                {{2, 1}, {0, 1}, {-2, 1}},
+                {{0, 1}, {1, 1}, {1, 1}}
+            }).solveBareiss(Solution.Mat.identity(3)));
+        // Fractions in the input and zeros on the diagonal
+        assertMat(
+            new int[][][] {
+                {{-2, 1}},
+                {{3, 2}}
+            },
+            mat(new int[][][] {
+                {{0, 1}, {2, 3}},
+                {{1, 2}, {1, 1}}
+            }).solveBareiss(mat(new int[][][] {
+                {{1, 1}},
+                {{1, 2}}
+            })));
+
+        Random random = new Random(42);
+        for (int size : new int[] {1, 2, 5, 10, 30}) {
+            Solution.Mat a = Solution.Mat.identity(size).minus(randomChainMat(random, size));
+            Solution.Mat rhs = Solution.Mat.unitColumn(size, 0);
+            assertEquals(a.solve(rhs).toString(), a.solveBareiss(rhs).toString());
+        }
+        for (int seed = 0; seed < 10; seed++) {
+            int[][] chain = randomChain(new Random(seed), 50, 1 + seed, 11 - seed);
+            assertArrayEquals(
+                    Solution.solution(chain, Solution.Elimination.GAUSS_JORDAN),
+                    Solution.solution(chain, Solution.Elimination.BAREISS));
+        }
+    }
+
+    @Test
+    void testParallelElimination() {
+        int[][] chain = randomChain(new Random(5), 30, 2, 3);
+        int[] expected = Solution.solution(chain, Solution.Elimination.GAUSS_JORDAN);
+        int threshold = Solution.Mat.parallelThreshold;
+        Solution.Mat.parallelThreshold = 1;
+        try {
+            for (Solution.Elimination elimination : Solution.Elimination.values()) {
+                assertArrayEquals(expected, Solution.solution(chain, elimination));
+            }
+        } finally {
+            Solution.Mat.parallelThreshold = threshold;
+        }
+    }
+
+    // Transient part (Q) of random absorbing chain
+    static Solution.Mat randomChainMat(Random random, int size) {
+        return Solution.AbsMarkovChain.parse(randomChain(random, size, 1, 1)).trans;
+    }
+
+    @Test
+    void testTranspose() {
+        assertMat(
+            new int[][][] {
+                {{1, 2}, {4, 1}},
+                {{1, 1}, {5, 2}},
+                {{3, 2}, {3, 1}}
+            },
+            mat(new int[][][] {
+                {{1, 2}, {1, 1}, {3, 2}},
+                {{4, 1}, {5, 2}, {3, 1}}
+            }).transpose());
+    }
+
     @Test
     void testMultiply() {
         assertMat(
@@ -322,6 +443,366 @@ class MarkovTest {
             }));
     }
 
+    @Test
+    void testSolveDouble() {
+        int[][] m = {
+            {0, 7, 0, 17, 0, 1, 0, 5, 0, 2},
+            {0, 0, 29, 0, 28, 0, 3, 0, 16, 0},
+            {0, 3, 0, 0, 0, 1, 0, 0, 0, 0},
+            {48, 0, 3, 0, 0, 0, 17, 0, 0, 0},
+            {0, 6, 0, 0, 0, 1, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+        };
+        assertArrayEquals(new int[] {4, 5, 5, 4, 2, 20}, Solution.solveDouble(m));
+        assertArrayEquals(new int[] {1, 2, 3}, Solution.solveDouble(randomChain(new Random(3), 100, 5, 10)));
+        // 2147483646 / 2147483647 is too close to 1 to be restored from double
+        m = new int[][] {
+            {0, 2147483646, 1},
+            {0, 0, 0},
+            {0, 0, 0}
+        };
+        assertNull(Solution.solveDouble(m));
+        assertArrayEquals(new int[] {2147483646, 1, 2147483647}, Solution.solution(m, Solution.Elimination.DOUBLE));
+
+        assertArrayEquals(new long[] {1, 3}, Solution.approximate(1.0 / 3, 1000));
+        assertArrayEquals(new long[] {355, 113}, Solution.approximate(355.0 / 113, 1000));
+        assertNull(Solution.approximate(Math.PI, 100));
+    }
+
+    @Test
+    void testIncremental() {
+        int[][] m = {
+            {0, 1, 0, 0, 3, 0},
+            {4, 0, 0, 3, 2, 0},
+            {0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0}
+        };
+        Solution.IncrementalChain chain = new Solution.IncrementalChain(m);
+        assertArrayEquals(Solution.solution(m), chain.solution());
+
+        // Transient row is changed
+        m[1] = new int[] {1, 2, 0, 0, 0, 5};
+        chain.updateRow(1, m[1]);
+        assertArrayEquals(Solution.solution(m), chain.solution());
+
+        // Absorbing state becomes transient, and back
+        m[2] = new int[] {1, 0, 0, 1, 0, 0};
+        chain.updateRow(2, m[2]);
+        m[1] = new int[] {0, 0, 2, 1, 0, 0};
+        chain.updateRow(1, m[1]);
+        assertArrayEquals(Solution.solution(m), chain.solution());
+        m[2] = new int[] {0, 0, 0, 0, 0, 0};
+        chain.updateRow(2, m[2]);
+        assertArrayEquals(Solution.solution(m), chain.solution());
+
+        // Several rows at once
+        int[][] big = randomChain(new Random(7), 30, 1, 2);
+        chain = new Solution.IncrementalChain(big);
+        Random random = new Random(8);
+        int[] states = {0, 5, 29};
+        int[][] rows = new int[states.length][];
+        for (int k = 0; k < states.length; k++) {
+            rows[k] = big[states[k]].clone();
+            for (int j = 0; j < 30; j++) {
+                rows[k][j] = random.nextInt(100);
+            }
+        }
+        chain.updateRows(states, rows);
+        assertArrayEquals(new int[] {1, 2, 3}, chain.solution());
+    }
+
+    @Test
+    void testIncrementalFailedUpdate() {
+        Solution.IncrementalChain chain = new Solution.IncrementalChain(new int[][] {
+            {0, 1, 0},
+            {0, 0, 1},
+            {0, 0, 0}
+        });
+        assertArrayEquals(new int[] {1, 1}, chain.solution());
+        // States 0 and 1 make a closed loop, so I - Q is singular, and the chain is not changed
+        assertThrows(RuntimeException.class, () -> chain.updateRow(1, new int[] {1, 0, 0}));
+        assertArrayEquals(new int[] {1, 1}, chain.solution());
+        chain.updateRow(1, new int[] {0, 0, 1});
+        assertArrayEquals(new int[] {1, 1}, chain.solution());
+    }
+
+    @Test
+    void testIncrementalUnreachable() {
+        // States 1 and 2 make a closed loop, which can't be reached from state 0
+        int[][] m = {
+            {0, 0, 0, 1},
+            {0, 0, 1, 0},
+            {0, 1, 0, 0},
+            {0, 0, 0, 0}
+        };
+        assertArrayEquals(new int[] {1, 1}, new Solution.IncrementalChain(m).solution());
+
+        // Random small sparse chains with random updates, compared with solution(m)
+        Random random = new Random(3);
+        for (int k = 0; k < 1000; k++) {
+            int n = 2 + random.nextInt(5);
+            m = new int[n][];
+            for (int i = 0; i < n; i++) {
+                m[i] = randomSparseRow(random, n);
+            }
+            Solution.IncrementalChain chain = null;
+            for (int step = 0; step < 5; step++) {
+                int[] expected = solutionOrNull(m);
+                if (chain == null) {
+                    if (expected != null) {
+                        chain = new Solution.IncrementalChain(m);
+                        assertArrayEquals(expected, chain.solution(), "chain " + k);
+                    }
+                } else if (expected != null) {
+                    assertArrayEquals(expected, chain.solution(), "chain " + k + " step " + step);
+                }
+                int state = random.nextInt(n);
+                int[] row = randomSparseRow(random, n);
+                if (chain == null) {
+                    m[state] = row;
+                    continue;
+                }
+                try {
+                    chain.updateRow(state, row);
+                    m[state] = row;
+                } catch (RuntimeException e) {
+                    // Then the chain is not changed
+                    int[] old = m[state];
+                    m[state] = row;
+                    assertNull(solutionOrNull(m), "chain " + k + " step " + step);
+                    m[state] = old;
+                }
+            }
+        }
+    }
+
+    private static int[] randomSparseRow(Random random, int n) {
+        int[] row = new int[n];
+        for (int j = 0; j < n; j++) {
+            row[j] = random.nextInt(3) == 0 ? random.nextInt(3) : 0;
+        }
+        return row;
+    }
+
+    // Result of solution(m), or null if the chain has a closed loop of transient states
+    private static int[] solutionOrNull(int[][] m) {
+        try {
+            return Solution.solution(m);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Test
+    void testAbsorption() {
+        int[][] m = {
+            {0, 7, 0, 17, 0, 1, 0, 5, 0, 2},
+            {0, 0, 29, 0, 28, 0, 3, 0, 16, 0},
+            {0, 3, 0, 0, 0, 1, 0, 0, 0, 0},
+            {48, 0, 3, 0, 0, 0, 17, 0, 0, 0},
+            {0, 6, 0, 0, 0, 1, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+        };
+        Solution.Absorption absorption = Solution.absorption(m);
+        assertArrayEquals(new int[] {0, 1, 2, 3, 4}, absorption.states);
+        for (int k = 0; k < absorption.states.length; k++) {
+            // Swap state 0 and state k, to make it the start state
+            int s = absorption.states[k];
+            int[][] swapped = new int[m.length][m.length];
+            for (int i = 0; i < m.length; i++) {
+                for (int j = 0; j < m.length; j++) {
+                    swapped[i][j] = m[i == 0 ? s : i == s ? 0 : i][j == 0 ? s : j == s ? 0 : j];
+                }
+            }
+            assertArrayEquals(Solution.solution(swapped), absorption.probabilities[k]);
+        }
+
+        // 0 -> 1 -> 2, and 1 stays in place with probability 1/2
+        absorption = Solution.absorption(new int[][] {
+            {0, 1, 0},
+            {0, 1, 1},
+            {0, 0, 0}
+        });
+        assertArrayEquals(new int[] {0, 1}, absorption.states);
+        assertArrayEquals(new int[][] {{1, 1}, {1, 1}}, absorption.probabilities);
+        assertArrayEquals(new int[][] {{3, 1}, {2, 1}}, absorption.steps);
+
+        // States 1 and 2 make a closed loop, state 0 gets into it with probability 1/2, state 4 never does
+        absorption = Solution.absorption(new int[][] {
+            {0, 1, 0, 1, 0},
+            {0, 0, 1, 0, 0},
+            {0, 1, 0, 0, 0},
+            {0, 0, 0, 0, 0},
+            {0, 0, 0, 1, 1}
+        });
+        assertArrayEquals(new int[] {0, 1, 2, 4}, absorption.states);
+        assertArrayEquals(new int[][] {{1, 2}, {0, 1}, {0, 1}, {1, 1}}, absorption.probabilities);
+        assertArrayEquals(
+            new int[][] {Solution.NEVER_ABSORBED, Solution.NEVER_ABSORBED, Solution.NEVER_ABSORBED, {2, 1}},
+            absorption.steps);
+
+        // No state can be absorbed
+        absorption = Solution.absorption(new int[][] {{0, 1}, {1, 0}});
+        assertArrayEquals(new int[][] {{1}, {1}}, absorption.probabilities);
+        assertArrayEquals(new int[][] {Solution.NEVER_ABSORBED, Solution.NEVER_ABSORBED}, absorption.steps);
+    }
+
+    @Test
+    void testOverflow() {
+        // Every transient state goes to absorbing states with the same weights,
+        // so the answer doesn't depend on transitions between transient states,
+        // but they make intermediate numbers overflow long
+        assertArrayEquals(new int[] {1, 1, 2}, Solution.solution(randomChain(new Random(1), 20, 1, 1)));
+        assertArrayEquals(new int[] {3, 7, 10}, Solution.solution(randomChain(new Random(2), 50, 3, 7)));
+        assertArrayEquals(new int[] {1, 2, 3}, Solution.solution(randomChain(new Random(3), 100, 5, 10)));
+    }
+
+    @Test
+    void testBigRows() {
+        Solution.Mat mat = new Solution.Mat(1, 2);
+        mat.addValue(0, 0, Long.MAX_VALUE / 2, 1);
+        mat.addValue(0, 1, 1, 3);
+        assertTrue(mat.isBig(0));
+        mat.addValue(0, 0, -(Long.MAX_VALUE / 2), 1);
+        mat.simplifyRow(0);
+        assertFalse(mat.isBig(0));
+        assertMat(new int[][][] {{{0, 1}, {1, 3}}}, mat);
+    }
+
+    @Test
+    void testUnreachable() {
+        // States 2 and 3 can't be reached from state 0
+        assertArrayEquals(
+            new int[] {0, 1, 0, 1},
+            Solution.solution(new int[][] {
+                {0, 1, 0, 0, 0, 0},
+                {0, 0, 0, 0, 1, 0},
+                {0, 0, 0, 1, 0, 1},
+                {0, 0, 0, 0, 0, 0},
+                {0, 0, 0, 0, 0, 0},
+                {0, 0, 0, 0, 0, 0}
+            }));
+        // Big unreachable part, which overflows long if it is not pruned
+        int[][] unreachable = randomChain(new Random(1), 100, 1, 1);
+        int[][] m = new int[unreachable.length + 1][unreachable.length + 1];
+        m[0][unreachable.length - 1] = 1;
+        m[0][unreachable.length] = 2;
+        for (int i = 0; i < unreachable.length; i++) {
+            System.arraycopy(unreachable[i], 0, m[i + 1], 1, unreachable.length);
+        }
+        assertArrayEquals(new int[] {1, 2, 3}, Solution.solution(m));
+
+        boolean[] reachable = Solution.reachableStates(m, 0);
+        assertTrue(reachable[0]);
+        assertFalse(reachable[1]);
+        assertEquals(3, Solution.prune(m, reachable).length);
+    }
+
+    @Test
+    void testSparse() {
+        int[][][] chains = {
+            {{0}},
+            {{0, 0}, {1, 1}},
+            {{0, 1}, {0, 0}},
+            {
+                {0, 2, 1, 0, 0},
+                {0, 0, 0, 3, 4},
+                {0, 0, 0, 0, 0},
+                {0, 0, 0, 0, 0},
+                {0, 0, 0, 0, 0}
+            },
+            {
+                {0, 7, 0, 17, 0, 1, 0, 5, 0, 2},
+                {0, 0, 29, 0, 28, 0, 3, 0, 16, 0},
+                {0, 3, 0, 0, 0, 1, 0, 0, 0, 0},
+                {48, 0, 3, 0, 0, 0, 17, 0, 0, 0},
+                {0, 6, 0, 0, 0, 1, 0, 0, 0, 0},
+                {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+                {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+                {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+                {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+                {0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+            },
+            randomChain(new Random(1), 20, 1, 1),
+            randomChain(new Random(3), 100, 5, 10),
+            // Closed loop of states 1 and 2 can't be reached from state 0
+            {{0, 0, 0, 1}, {0, 0, 1, 0}, {0, 1, 0, 0}, {0, 0, 0, 0}},
+        };
+        for (int[][] chain : chains) {
+            Solution.SparseChain sparse = Solution.SparseChain.parse(chain);
+            assertArrayEquals(
+                Solution.solution(chain),
+                Solution.solution(sparse.rowPtr, sparse.cols, sparse.weights));
+        }
+        Random chainRandom = new Random(4);
+        for (int c = 0; c < 1000; c++) {
+            int size = 2 + chainRandom.nextInt(5);
+            int[][] chain = new int[size][];
+            for (int i = 0; i < size; i++) {
+                chain[i] = randomSparseRow(chainRandom, size);
+            }
+            int[] expected = solutionOrNull(chain);
+            if (expected != null) {
+                Solution.SparseChain sparse = Solution.SparseChain.parse(chain);
+                assertArrayEquals(expected, Solution.solution(sparse.rowPtr, sparse.cols, sparse.weights),
+                        "chain " + c);
+            }
+        }
+
+        // 30x30 grid with random weights to neighbours, and weights 1 and 2 from each cell to absorbing A and B
+        int side = 30;
+        int n = side * side;
+        Random random = new Random(1);
+        int[] rowPtr = new int[n + 3];
+        int[] cols = new int[n * 6];
+        int[] weights = new int[n * 6];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            int x = i % side;
+            int y = i / side;
+            int[][] neighbours = {{x + 1, y}, {x - 1, y}, {x, y + 1}, {x, y - 1}};
+            for (int[] cell : neighbours) {
+                if (cell[0] >= 0 && cell[0] < side && cell[1] >= 0 && cell[1] < side) {
+                    cols[k] = cell[1] * side + cell[0];
+                    weights[k++] = 1 + random.nextInt(9);
+                }
+            }
+            cols[k] = n;
+            weights[k++] = 1;
+            cols[k] = n + 1;
+            weights[k++] = 2;
+            rowPtr[i + 1] = k;
+        }
+        rowPtr[n + 1] = k;
+        rowPtr[n + 2] = k;
+        assertArrayEquals(
+            new int[] {1, 2, 3},
+            Solution.solution(rowPtr, Arrays.copyOf(cols, k), Arrays.copyOf(weights, k)));
+    }
+
+    // Chain with given number of transient states, followed by two absorbing states A and B
+    static int[][] randomChain(Random random, int transients, int toA, int toB) {
+        int[][] m = new int[transients + 2][transients + 2];
+        for (int i = 0; i < transients; i++) {
+            for (int j = 0; j < transients; j++) {
+                m[i][j] = random.nextInt(100);
+            }
+            m[i][transients] = toA;
+            m[i][transients + 1] = toB;
+        }
+        return m;
+    }
+
     private void assertMat(int[][][] data, Solution.Mat actual) {
         Solution.Mat expected = mat(data);
         assertArrayEquals(expected.nums, actual.nums);
@@ -1,8 +1,23 @@
 package maxflow;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class MaxFlowTest {
     @Test
@@ -43,4 +58,344 @@ class MaxFlowTest {
         }));
 
     }
+
+    @Test
+    void testBuild() {
+        // Edges from both sources to vertex 2 are merged, source 0 -> target 3 is kept,
+        // input of source 1 and output of target 3 are ignored
+        Solution.Graph g = Solution.Graph.build(new int[][] {
+            {0, 0, 2, 1},
+            {0, 0, 3, 0},
+            {0, 4, 0, 5},
+            {0, 0, 1, 0}
+        }, new boolean[] {true, true, false, false}, new boolean[] {false, false, false, true}, 0, 3);
+        assertEquals(6, g.edgeCount);
+        assertEquals(6, g.solve());
+
+        // 1 -> 2 and 2 -> 1 share a pair of edges
+        g = Solution.Graph.build(new int[][] {
+            {0, 4, 0, 0},
+            {0, 0, 2, 0},
+            {0, 3, 0, 5},
+            {0, 0, 0, 0}
+        }, new boolean[] {true, false, false, false}, new boolean[] {false, false, false, true}, 0, 3);
+        assertEquals(6, g.edgeCount);
+        assertEquals(2, g.solve());
+    }
+
+    @Test
+    void testRandom() {
+        for (int seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            int n = 4 + random.nextInt(40);
+            // Sparse graphs have many vertices which can't reach the target, which makes gaps
+            int[][] path = randomPath(random, n, 3 + random.nextInt(30), 100);
+            int[] entrances = {0, 1};
+            int[] exits = {n - 1, n - 2};
+            assertEquals(edmondsKarp(entrances, exits, path), Solution.solution(entrances, exits, path), "seed " + seed);
+        }
+    }
+
+    @Test
+    void testEngines() {
+        Solution.MaxFlowEngine[] engines = {
+            Solution.MaxFlowEngine.PUSH_RELABEL,
+            Solution.MaxFlowEngine.PARALLEL_PUSH_RELABEL,
+            Solution.MaxFlowEngine.DINIC,
+            Solution.MaxFlowEngine.BOYKOV_KOLMOGOROV
+        };
+        for (int seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            int n = 4 + random.nextInt(40);
+            // Unit, small and big capacities
+            int maxCap = new int[] {1, 10, 1000}[seed % 3];
+            int[][] path = randomPath(random, n, 3 + random.nextInt(30), maxCap);
+            int[] entrances = {0, 1};
+            int[] exits = {n - 1, n - 2};
+            int expected = edmondsKarp(entrances, exits, path);
+            for (Solution.MaxFlowEngine engine : engines) {
+                assertEquals(expected, Solution.solution(entrances, exits, path, engine), "seed " + seed);
+            }
+        }
+
+        // 100x100 grid with unit capacities, source on the left and target on the right
+        int side = 100;
+        int[] flows = new int[engines.length];
+        for (int k = 0; k < engines.length; k++) {
+            flows[k] = grid(side, new Random(1)).solve(engines[k]);
+        }
+        for (int flow : flows) {
+            assertEquals(flows[0], flow);
+        }
+        assertEquals(Solution.MaxFlowEngine.DINIC, Solution.MaxFlowEngine.select(grid(side, new Random(1))));
+    }
+
+    @Test
+    void testParallelPushRelabel() {
+        int threshold = Solution.ParallelPushRelabel.parallelThreshold;
+        Solution.ParallelPushRelabel.parallelThreshold = 1;
+        try {
+            for (int seed = 0; seed < 100; seed++) {
+                Random random = new Random(seed);
+                int n = 4 + random.nextInt(60);
+                int[][] path = randomPath(random, n, 3 + random.nextInt(30), 1 + random.nextInt(1000));
+                int[] entrances = {0, 1};
+                int[] exits = {n - 1, n - 2};
+                assertEquals(edmondsKarp(entrances, exits, path),
+                        Solution.solution(entrances, exits, path, Solution.MaxFlowEngine.PARALLEL_PUSH_RELABEL),
+                        "seed " + seed);
+            }
+            for (int seed = 0; seed < 5; seed++) {
+                int expected = grid(100, new Random(seed)).solve(Solution.MaxFlowEngine.PUSH_RELABEL);
+                Solution.Graph g = grid(100, new Random(seed));
+                assertEquals(expected, g.solve(Solution.MaxFlowEngine.PARALLEL_PUSH_RELABEL), "seed " + seed);
+            }
+        } finally {
+            Solution.ParallelPushRelabel.parallelThreshold = threshold;
+        }
+    }
+
+    @Test
+    void testIncremental() {
+        for (int seed = 0; seed < 100; seed++) {
+            Random random = new Random(seed);
+            int n = 4 + random.nextInt(30);
+            int[][] path = randomPath(random, n, 5 + random.nextInt(30), 100);
+            int[] entrances = {0, 1};
+            int[] exits = {n - 1, n - 2};
+            Solution.IncrementalFlow flow = new Solution.IncrementalFlow(entrances, exits, path);
+            assertEquals(edmondsKarp(entrances, exits, path), flow.solution(), "seed " + seed);
+            for (int step = 0; step < 20; step++) {
+                // Several changes between solutions, capacities are decreased, removed, increased or added
+                for (int k = random.nextInt(4); k >= 0; k--) {
+                    int u = random.nextInt(n);
+                    int v = random.nextInt(n);
+                    int cap = random.nextInt(3) == 0 ? 0 : random.nextInt(150);
+                    path[u][v] = cap;
+                    flow.setCapacity(u, v, cap);
+                }
+                assertEquals(edmondsKarp(entrances, exits, path), flow.solution(), "seed " + seed + " step " + step);
+            }
+        }
+    }
+
+    @Test
+    void testEdgeList() {
+        for (int seed = 0; seed < 100; seed++) {
+            Random random = new Random(seed);
+            int n = 4 + random.nextInt(40);
+            int[][] path = randomPath(random, n, 3 + random.nextInt(30), 100);
+            int[] entrances = {0, 1};
+            int[] exits = {n - 1, n - 2};
+            int[][] edges = edgeList(path, random);
+            assertEquals(edmondsKarp(entrances, exits, path),
+                    Solution.solution(entrances, exits, n, edges[0], edges[1], edges[2]), "seed " + seed);
+        }
+
+        // Negative capacities and vertices out of range
+        int[] entrances = {0};
+        int[] exits = {1};
+        assertThrows(IllegalArgumentException.class,
+                () -> Solution.solution(entrances, exits, 2, new int[] {0, 0}, new int[] {1, 1}, new int[] {5, -3}));
+        assertThrows(IllegalArgumentException.class,
+                () -> Solution.solution(entrances, exits, 2, new int[] {0}, new int[] {2}, new int[] {5}));
+        assertThrows(IllegalArgumentException.class,
+                () -> Solution.solution(entrances, exits, 2, new int[] {-1}, new int[] {1}, new int[] {5}));
+    }
+
+    @Test
+    void testRead(@TempDir Path dir) throws IOException {
+        int window = Solution.MappedInput.windowSize;
+        // Small windows, so numbers and lines are split between them
+        Solution.MappedInput.windowSize = 7;
+        try {
+            for (int seed = 0; seed < 30; seed++) {
+                Random random = new Random(seed);
+                int n = 4 + random.nextInt(40);
+                int[][] path = randomPath(random, n, 3 + random.nextInt(30), 100);
+                int[] entrances = {0, 1};
+                int[] exits = {n - 1, n - 2};
+                int expected = edmondsKarp(entrances, exits, path);
+                int[][] edges = edgeList(path, random);
+
+                Path text = dir.resolve("graph" + seed + ".txt");
+                StringBuilder sb = new StringBuilder("c Random graph\n");
+                sb.append("p max ").append(n).append(' ').append(edges[0].length).append('\n');
+                sb.append("n 1 s\nn 2 s\nn ").append(n).append(" t\nn ").append(n - 1).append(" t\n");
+                for (int k = 0; k < edges[0].length; k++) {
+                    sb.append("a ").append(edges[0][k] + 1).append(' ').append(edges[1][k] + 1).append(' ')
+                            .append(edges[2][k]).append(seed % 2 == 0 ? "\n" : "\r\n");
+                }
+                Files.write(text, sb.toString().getBytes(StandardCharsets.US_ASCII));
+                assertEquals(expected, Solution.solution(text), "seed " + seed);
+
+                Path binary = dir.resolve("graph" + seed + ".bin");
+                try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(binary))) {
+                    out.writeInt(Solution.Graph.BINARY_MAGIC);
+                    out.writeInt(n);
+                    out.writeInt(edges[0].length);
+                    out.writeInt(2);
+                    out.writeInt(0);
+                    out.writeInt(1);
+                    out.writeInt(2);
+                    out.writeInt(n - 1);
+                    out.writeInt(n - 2);
+                    for (int k = 0; k < edges[0].length; k++) {
+                        out.writeInt(edges[0][k]);
+                        out.writeInt(edges[1][k]);
+                        out.writeInt(edges[2][k]);
+                    }
+                }
+                assertEquals(expected, Solution.solution(binary), "seed " + seed);
+            }
+        } finally {
+            Solution.MappedInput.windowSize = window;
+        }
+
+        Path good = dir.resolve("good.txt");
+        Files.write(good, "p max 3 2\nn 1 s\nn 3 t\na 1 2 5\na 2 3 4\n".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(4, Solution.solution(good, Solution.MaxFlowEngine.DINIC));
+
+        String[] badTexts = {
+            // No source and target
+            "p max 2 1\na 1 2 5\n",
+            // Vertices out of range
+            "p max 2 1\nn 1 s\nn 2 t\na 1 3 5\n",
+            "p max 2 1\nn 0 s\nn 2 t\na 1 2 5\n",
+            "p max 0 0\n",
+            // Number doesn't fit into int
+            "p max 2 1\nn 1 s\nn 2 t\na 1 2 99999999999\n",
+        };
+        for (String text : badTexts) {
+            Path bad = dir.resolve("bad.txt");
+            Files.write(bad, text.getBytes(StandardCharsets.US_ASCII));
+            assertThrows(IOException.class, () -> Solution.solution(bad), text);
+        }
+        int[][] badBinaries = {
+            // No sources
+            {Solution.Graph.BINARY_MAGIC, 2, 1, 0, 1, 1, 0, 1, 5},
+            // Vertices out of range
+            {Solution.Graph.BINARY_MAGIC, 2, 1, 1, 0, 1, 2, 0, 1, 5},
+            {Solution.Graph.BINARY_MAGIC, 2, 1, 1, 0, 1, 1, 0, -1, 5},
+            // More edges than the file has
+            {Solution.Graph.BINARY_MAGIC, 2, 2, 1, 0, 1, 1, 0, 1, 5},
+            // Negative capacity
+            {Solution.Graph.BINARY_MAGIC, 2, 1, 1, 0, 1, 1, 0, 1, -5},
+        };
+        for (int[] ints : badBinaries) {
+            Path bad = dir.resolve("bad.bin");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(bad))) {
+                for (int value : ints) {
+                    out.writeInt(value);
+                }
+            }
+            assertThrows(IOException.class, () -> Solution.solution(bad), Arrays.toString(ints));
+        }
+    }
+
+    // Edges of the matrix in random order as from, to and cap arrays, some of them are split in two parallel edges
+    static int[][] edgeList(int[][] path, Random random) {
+        List<int[]> edges = new ArrayList<>();
+        for (int u = 0; u < path.length; u++) {
+            for (int v = 0; v < path.length; v++) {
+                int c = path[u][v];
+                if (c > 1 && random.nextInt(4) == 0) {
+                    int part = 1 + random.nextInt(c - 1);
+                    edges.add(new int[] {u, v, part});
+                    c -= part;
+                }
+                if (c != 0) {
+                    edges.add(new int[] {u, v, c});
+                }
+            }
+        }
+        Collections.shuffle(edges, random);
+        int[][] result = new int[3][edges.size()];
+        for (int k = 0; k < edges.size(); k++) {
+            for (int i = 0; i < 3; i++) {
+                result[i][k] = edges.get(k)[i];
+            }
+        }
+        return result;
+    }
+
+    // Grid with edges to neighbours with capacities 0 or 1, source and target are extra vertices
+    static Solution.Graph grid(int side, Random random) {
+        int n = side * side;
+        Solution.Graph g = new Solution.Graph(n, n + 1, n + 2);
+        for (int y = 0; y < side; y++) {
+            g.addEdge(n, y * side, 1, 0);
+            g.addEdge(y * side + side - 1, n + 1, 1, 0);
+            for (int x = 0; x < side; x++) {
+                int v = y * side + x;
+                if (x + 1 < side) {
+                    g.addEdge(v, v + 1, random.nextInt(2), random.nextInt(2));
+                }
+                if (y + 1 < side) {
+                    g.addEdge(v, v + side, random.nextInt(2), random.nextInt(2));
+                }
+            }
+        }
+        return g;
+    }
+
+    static int[][] randomPath(Random random, int n, int density, int maxCap) {
+        int[][] path = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (random.nextInt(100) < density) {
+                    path[i][j] = 1 + random.nextInt(maxCap);
+                }
+            }
+        }
+        return path;
+    }
+
+    // Reference solution: shortest augmenting paths on the matrix with extra super source and super target
+    static int edmondsKarp(int[] entrances, int[] exits, int[][] path) {
+        int n = path.length + 2;
+        int source = n - 2;
+        int target = n - 1;
+        long[][] caps = new long[n][n];
+        for (int i = 0; i < path.length; i++) {
+            for (int j = 0; j < path.length; j++) {
+                caps[i][j] = path[i][j];
+            }
+        }
+        for (int entrance : entrances) {
+            caps[source][entrance] = Long.MAX_VALUE / 4;
+        }
+        for (int exit : exits) {
+            caps[exit][target] = Long.MAX_VALUE / 4;
+        }
+        long flow = 0;
+        int[] prev = new int[n];
+        while (true) {
+            Arrays.fill(prev, -1);
+            prev[source] = source;
+            Queue<Integer> queue = new ArrayDeque<>();
+            queue.add(source);
+            while (!queue.isEmpty() && prev[target] == -1) {
+                int v = queue.poll();
+                for (int u = 0; u < n; u++) {
+                    if (prev[u] == -1 && caps[v][u] > 0) {
+                        prev[u] = v;
+                        queue.add(u);
+                    }
+                }
+            }
+            if (prev[target] == -1) {
+                return (int) flow;
+            }
+            long delta = Long.MAX_VALUE;
+            for (int v = target; v != source; v = prev[v]) {
+                delta = Math.min(delta, caps[prev[v]][v]);
+            }
+            for (int v = target; v != source; v = prev[v]) {
+                caps[prev[v]][v] -= delta;
+                caps[v][prev[v]] += delta;
+            }
+            flow += delta;
+        }
+    }
 }